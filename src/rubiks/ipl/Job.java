@@ -0,0 +1,75 @@
+package rubiks.ipl;
+
+/**
+ * A job for the workers: the cube reached from the start cube with a few
+ * twists, searched to a bound. Only the twists are sent to the workers, which
+ * got the start cube once, at the start of the computation.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public class Job {
+
+	/**
+	 * Index of the job in the jobs generated by the Master, the same for every
+	 * bound the jobs are generated the same way for
+	 */
+	final int id;
+
+	/**
+	 * Bound to search the cube to
+	 */
+	final int bound;
+
+	/**
+	 * Twists leading from the start cube to the cube of this job
+	 */
+	final short[] moves;
+
+	/**
+	 * Number of twist sequences the Master generated that lead to the same
+	 * cube as this job does, counting every sequence as many times as its
+	 * weight (see Cube.getWeight()). The sequences end with the same twists
+	 * over the same axis, so the solutions of the cube count the same for
+	 * each of them
+	 */
+	int copies;
+
+	public Job(int id, int bound, short[] moves, int copies) {
+		this.id = id;
+		this.bound = bound;
+		this.moves = moves;
+		this.copies = copies;
+	}
+
+	/**
+	 * Solves the cube of this job
+	 *
+	 * @param start
+	 *            the start cube, which is not changed
+	 * @return the number of solutions found, times the copies of the job
+	 */
+	public int solutions(Cube start) {
+		// the search counts the solutions for the weight of the twists of
+		// this job, which are one of the copies
+		Cube cube = cube(start);
+		return (int) ((long) copies * Rubiks.solutions(cube) / cube
+				.getWeight());
+	}
+
+	/**
+	 * Rebuilds the cube of this job, with the twists leading to it
+	 *
+	 * @param start
+	 *            the start cube, which is not changed
+	 * @return a new cube, ready to be searched
+	 */
+	public Cube cube(Cube start) {
+		Cube result = new Cube(start);
+		result.setBound(bound);
+		for (short move : moves) {
+			result.follow(move);
+		}
+		return result;
+	}
+}
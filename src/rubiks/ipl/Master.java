@@ -1,6 +1,7 @@
 package rubiks.ipl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -25,6 +26,13 @@ public class Master {
 	 */
 	private Map<IbisIdentifier, SendPort> masterSendPorts = new HashMap<IbisIdentifier, SendPort>();
 
+	/**
+	 * Job requests received and not replied yet, per Worker. A Worker keeps up
+	 * to --prefetch requests outstanding, every message with jobs or a pause
+	 * message takes one
+	 */
+	private Map<IbisIdentifier, Integer> credits = new HashMap<IbisIdentifier, Integer>();
+
 	/**
 	 * Receive port of the master
 	 */
@@ -47,26 +55,153 @@ public class Master {
 	private Rubiks rubiks;
 
 	/**
-	 * Queue of the cube that are ready to be processed by the Workers
+	 * Queue of the jobs that are ready to be processed by the Workers
+	 */
+	private LinkedList<Job> jobsQueue = new LinkedList<Job>();
+
+	/**
+	 * Queues of the jobs that are ready to be processed, per Worker that
+	 * solved the job for an earlier bound. These jobs are sent in RERUN
+	 * messages, without their twists
+	 */
+	private Map<IbisIdentifier, LinkedList<Job>> ownJobsQueues = new HashMap<IbisIdentifier, LinkedList<Job>>();
+
+	/**
+	 * Number of jobs in jobsQueue and ownJobsQueues
+	 */
+	private int queuedJobs = 0;
+
+	/**
+	 * The jobs generated last, per job id. The jobs of the next bounds are the
+	 * same as long as the split depth is the same
 	 */
-	private LinkedList<Cube> cubesQueue = new LinkedList<Cube>();
+	private ArrayList<Job> frontier = new ArrayList<Job>();
 
 	/**
-	 * Minimun number of cubes that can be sent to a worker, only when all the
-	 * cubes for the current bound are generated, the Master can send less cubes
-	 * in a message
+	 * The jobs generated for the current bound, per cube and twists leading
+	 * to it (see stateKey()). Only used by generateJobsForCurrentBound()
+	 */
+	private Map<ByteBuffer, Job> frontierStates = new HashMap<ByteBuffer, Job>();
+
+	/**
+	 * Worker the jobs generated last were sent to, per job id
+	 */
+	private ArrayList<IbisIdentifier> owners = new ArrayList<IbisIdentifier>();
+
+	/**
+	 * Split depth of the jobs generated last, -1 if none
+	 */
+	private int frontierDepth = -1;
+
+	/**
+	 * Twists leading from the start cube to the cube generateJobsForCurrentBound()
+	 * is at
+	 */
+	private short[] path = null;
+
+	/**
+	 * Number of twists the Master does on the start cube to generate the jobs
+	 * of the current bound. The current bound is solved by the Master alone if
+	 * it isn't below the bound (see splitDepth())
+	 */
+	private int splitDepth = 0;
+
+	/**
+	 * Number of jobs generated when splitting at every depth, up to the
+	 * deepest depth that gives no more than maxJobs jobs
+	 */
+	private long[] jobCounts = null;
+
+	/**
+	 * Number of jobs per thread of the workers to generate for a bound. More
+	 * jobs than threads let the workers finish a bound at about the same time
+	 */
+	private static final int jobsPerThread = 16;
+
+	/**
+	 * Maximum number of jobs generated for a bound
+	 */
+	private static final int maxJobs = 1 << 18;
+
+	/**
+	 * Number of cubes sent in a message while the time to solve a cube is not
+	 * known yet
 	 */
 	private static final int minCubesToSend = 3;
 
 	/**
 	 * Maximum number of cubes that can be sent in a message
 	 */
-	private static final int maxCubesToSend = 7;
+	private static final int maxCubesToSend = 4096;
+
+	/**
+	 * Time in milliseconds a worker should take to solve a message of cubes,
+	 * set with --batch-target. The number of cubes sent in a message follows
+	 * from the time the workers took to solve cubes so far
+	 */
+	private long batchTarget = 100;
+
+	/**
+	 * Number of cubes solved for the current bound, as reported by the workers
+	 */
+	private long solvedJobs = 0;
+
+	/**
+	 * Time in nanoseconds the workers took to solve the solvedJobs cubes,
+	 * summed over their threads
+	 */
+	private long solvedNanos = 0;
+
+	/**
+	 * Time in nanoseconds to solve all cubes of the last bound, summed over
+	 * the threads of the workers. 0 if not known
+	 */
+	private double lastBoundCost = 0;
+
+	/**
+	 * The bound lastBoundCost was measured for
+	 */
+	private int lastBound = 0;
+
+	/**
+	 * Times a bound took longer to solve than the bound before
+	 */
+	private double boundCostGrowth = 1;
+
+	/**
+	 * The bound the workers are solving. With --overlap they can solve jobs of
+	 * the next bound too
+	 */
+	private int currentBound = 0;
+
+	/**
+	 * Highest bound the jobs are generated for
+	 */
+	private int generatedBound = 0;
+
+	/**
+	 * Threads of every worker, as they told in reply to the start cube, and
+	 * the threads of all workers together
+	 */
+	private Map<IbisIdentifier, Integer> threadsPerWorker = new HashMap<IbisIdentifier, Integer>();
+	private int workerThreads = 0;
+
+	/**
+	 * Jobs of the bounds in progress, and what the workers reported about them
+	 */
+	private Map<Integer, BoundCount> boundCounts = new HashMap<Integer, BoundCount>();
+
+	/**
+	 * Results of the workers collected for the current bound, and the
+	 * solutions in them
+	 */
+	private int results = 0;
+	private int resultSolutions = 0;
 
 	/**
-	 * Number of local twists per cube that will be performed by the Master
+	 * Sizes of the messages of cubes per bound, printed at the end
 	 */
-	private static final int localTwistsBound = 3;
+	private StringBuilder batchLog = new StringBuilder();
 
 	/**
 	 * Returns the send port for the worker given in input
@@ -76,72 +211,433 @@ public class Master {
 		return port;
 	}
 
+	/**
+	 * Generates the jobs of a bound, at the depth chosen by splitDepth().
+	 * When the depth is the same as for the last bound, the jobs are the same
+	 * too, and every job is queued for the Worker that solved it last
+	 */
+	private void generateJobs(int bound) {
+		startCube.setBound(bound);
+		splitDepth = splitDepth(bound);
+		BoundCount count = boundCount(bound);
+		count.depth = splitDepth;
+		generatedBound = bound;
+
+		if (splitDepth == frontierDepth && !rubiks.stealing) {
+			for (Job last : frontier) {
+				Job job = new Job(last.id, bound, last.moves, last.copies);
+				IbisIdentifier owner = owners.get(last.id);
+				if (owner == null) {
+					jobsQueue.add(job);
+				} else {
+					ownJobsQueues.get(owner).add(job);
+				}
+				count.sequences += job.copies;
+			}
+			queuedJobs += frontier.size();
+			count.jobs = frontier.size();
+			return;
+		}
+
+		frontier.clear();
+		owners.clear();
+		frontierDepth = splitDepth;
+		path = new short[splitDepth];
+		generateJobsForCurrentBound(startCube, cache);
+		frontierStates.clear();
+	}
+
 	/**
 	 * Recursive function that generates the jobs to be sent to the workers for
 	 * the current bound. It will be called from an extern function each time
 	 * that the current bound is increased. The extern function call this
-	 * function with the initial cube in input
+	 * function with the initial cube in input. A job only holds the twists
+	 * leading to its cube, the workers got the start cube at the start.
+	 * Twist sequences leading to the same cube the same way make one job,
+	 * which is solved once and counted for every sequence
 	 */
-	private void generateJobsForCurrentBound(Cube cube, CubeCache cache)
-			throws IOException {
+	private void generateJobsForCurrentBound(Cube cube, CubeCache cache) {
 
 		// bound reached
 		if (cube.getTwists() >= cube.getBound()) {
 			return;
 		}
 
-		// generate all possible cubes from this one by twisting it in
-		// every possible way. Gets new objects from the cache
-		Cube[] children = cube.generateChildren(cache); // ****
-		for (Cube child : children) {
-			if (child.getTwists() >= localTwistsBound) {
-				cubesQueue.add(child);
-				sendJobs(false);
+		// generate the cubes from this one by twisting it in every way that
+		// can be part of a shortest solution. Twists over the same axis are
+		// only done in one order, the weight of the cube counts the others
+		for (int move = 0; move < Cube.moves(cube.getSize()); move++) {
+			if (!cube.canTwist(move)) {
+				continue;
+			}
+			Cube child = cube.twist(move, cache);
+			path[cube.getTwists()] = (short) move;
+			if (child.getTwists() >= splitDepth) {
+				BoundCount count = boundCount(child.getBound());
+				count.sequences += child.getWeight();
+				ByteBuffer key = stateKey(child);
+				Job job = frontierStates.get(key);
+				if (job != null) {
+					job.copies += child.getWeight();
+				} else {
+					job = new Job(frontier.size(), child.getBound(),
+							path.clone(), child.getWeight());
+					frontierStates.put(key, job);
+					frontier.add(job);
+					owners.add(null);
+					jobsQueue.add(job);
+					queuedJobs++;
+					count.jobs++;
+				}
 			} else
 				generateJobsForCurrentBound(child, cache); // recursive call
+			cache.put(child);
 		}
 	}
 
 	/**
-	 * Function to send the jobs to the workers. If the queue is smaller than
-	 * minCubesToSend the message won't be sent. If there isn't any ready
-	 * request from a worker the function returns without sending. This is to
-	 * avoid to waste time waiting the workers. Indeed the Master can continue
-	 * to populate the queue
+	 * Returns the key of a generated cube in frontierStates: its colors and
+	 * the twists at the end leading to it, which decide the twists searched
+	 * after it (see Cube.canTwist()) and how its solutions are counted with
+	 * MeetInTheMiddle. The weight is left out, the solutions count the same
+	 * per sequence for cubes with the same twists over the last axis (see
+	 * Job.copies).
+	 */
+	private static ByteBuffer stateKey(Cube cube) {
+		int facelets = Cube.SIDES * cube.getSize() * cube.getSize();
+		byte[] key = new byte[facelets + 8];
+		cube.getColors(key, 0);
+		ByteBuffer.wrap(key, facelets, 8)
+				.putShort((short) cube.getLastTwist())
+				.put((byte) cube.getRunLength())
+				.put((byte) (cube.isRepeated() ? 1 : 0))
+				.putInt(cube.getRun());
+		return ByteBuffer.wrap(key);
+	}
+
+	/**
+	 * Sends a message of at most batchSize(IbisIdentifier) jobs to a worker that asked for
+	 * jobs, waiting for a request if there isn't any. The jobs are sent once
+	 * all jobs of the bound are generated, as a job stands for all twist
+	 * sequences leading to its cube
+	 */
+	private void sendJobs() throws IOException {
+		IbisIdentifier currentWorker = takeCredit();
+		int jobsNumber = Math.min(batchSize(currentWorker), queuedJobs);
+
+		// The jobs the worker solved before go first, then the new jobs,
+		// then the jobs of the worker with the most jobs left
+		LinkedList<Job> queue = ownJobsQueues.get(currentWorker);
+		boolean rerun = !queue.isEmpty();
+		boolean fromBack = false;
+		if (!rerun && !jobsQueue.isEmpty()) {
+			queue = jobsQueue;
+		} else if (!rerun) {
+			for (LinkedList<Job> other : ownJobsQueues.values()) {
+				if (other.size() > queue.size()) {
+					queue = other;
+				}
+			}
+			fromBack = true;
+		}
+
+		// Taking the jobs from the queue, a message only has jobs of one
+		// bound
+		int bound = fromBack ? queue.peekLast().bound : queue
+				.peekFirst().bound;
+		ArrayList<Job> batch = new ArrayList<Job>(jobsNumber);
+		while (batch.size() < jobsNumber && !queue.isEmpty()) {
+			Job job = fromBack ? queue.peekLast() : queue.peekFirst();
+			if (job.bound != bound) {
+				break;
+			}
+			batch.add(fromBack ? queue.pollLast() : queue.pollFirst());
+			if (!rerun) {
+				owners.set(job.id, currentWorker);
+			}
+		}
+		Job[] jobsToSend = batch.toArray(new Job[batch.size()]);
+		jobsNumber = jobsToSend.length;
+		queuedJobs -= jobsNumber;
+		BoundCount count = boundCount(bound);
+		count.batches++;
+		count.smallestBatch = Math.min(count.smallestBatch, jobsNumber);
+		count.largestBatch = Math.max(count.largestBatch, jobsNumber);
+		if (rerun) {
+			count.reruns += jobsNumber;
+		}
+
+		// Sending the jobs
+		SendPort port = getSendPort(currentWorker);
+		WriteMessage w = port.newMessage();
+		if (rerun) {
+			Rubiks.writeRerun(w, jobsToSend);
+		} else {
+			Rubiks.writeJobs(w, jobsToSend);
+		}
+		w.finish();
+	}
+
+	/**
+	 * Takes a job request of the worker with the most requests outstanding,
+	 * which is the worker with the fewest jobs left to solve. Waits for a
+	 * request when there isn't any
 	 * 
-	 * @param sendWithoutCheckingSize
-	 *            if true the function is allowed to send less than
-	 *            minCubesToSend cubes
-	 */
-	private void sendJobs(boolean sendWithoutCheckingSize) throws IOException {
-
-		// checking the size of the queue
-		if ((sendWithoutCheckingSize || (cubesQueue.size() >= minCubesToSend))) {
-			ReadMessage r = masterReceivePort.poll();
-			if (r != null) { // false = no worker ready
-				String s = r.readString();
-				IbisIdentifier currentWorker = r.origin().ibisIdentifier();
-				r.finish();
-				int cubesNumber = Math.min(maxCubesToSend, cubesQueue.size());
-
-				// Taking the cubes from the queue
-				Cube[] cubesToSend = new Cube[cubesNumber];
-				for (int i = 0; !cubesQueue.isEmpty() && i < maxCubesToSend; i++) {
-					cubesToSend[i] = cubesQueue.pollFirst();
+	 * @return the worker to send the jobs to
+	 */
+	private IbisIdentifier takeCredit() throws IOException {
+		// reading the requests that arrived meanwhile
+		ReadMessage r = masterReceivePort.poll();
+		while (r != null) {
+			handleMessage(r);
+			r = masterReceivePort.poll();
+		}
+
+		while (true) {
+			IbisIdentifier worker = null;
+			int most = 0;
+			for (Map.Entry<IbisIdentifier, Integer> entry : credits.entrySet()) {
+				if (entry.getValue() > most) {
+					worker = entry.getKey();
+					most = entry.getValue();
 				}
+			}
+			if (worker != null) {
+				credits.put(worker, most - 1);
+				return worker;
+			}
+			handleMessage(masterReceivePort.receive());
+		}
+	}
 
-				// Sending the cubes
-				SendPort port = getSendPort(currentWorker);
-				WriteMessage w = port.newMessage();
-				w.writeObject(cubesToSend);
-				w.finish();
+	/**
+	 * Handles a message of a worker: a job request, a result or a report of
+	 * solved jobs
+	 */
+	private void handleMessage(ReadMessage r) throws IOException {
+		byte opcode = r.readByte();
+		if (opcode == Rubiks.READY_FOR_NEW_JOBS) {
+			addCredit(r);
+		} else if (opcode == Rubiks.RESULT) {
+			resultSolutions += r.readInt();
+			readJobCosts(r);
+			r.finish();
+			results++;
+		} else if (opcode == Rubiks.REPORT) {
+			readReport(r);
+		} else if (opcode == Rubiks.THREADS) {
+			int threads = r.readInt();
+			threadsPerWorker.put(r.origin().ibisIdentifier(), threads);
+			r.finish();
+			workerThreads += threads;
+		} else {
+			r.finish();
+			System.err.println("WEIRD MESSAGE FROM WORKER");
+		}
+	}
+
+	/**
+	 * Reads a report of the jobs of a bound a worker solved, the solutions
+	 * it found and the time the jobs took
+	 * 
+	 * @param r
+	 *            the REPORT message, with the opcode read
+	 */
+	private void readReport(ReadMessage r) throws IOException {
+		int bound = r.readInt();
+		int solved = r.readInt();
+		int solutions = r.readInt();
+		long nanos = r.readLong();
+		r.finish();
 
-				// Putting the cubes in the cache
-				for (Cube c : cubesToSend) {
-					cache.put(c);
+		BoundCount count = boundCount(bound);
+		count.solved += solved;
+		count.solutions += solutions;
+		count.nanos += nanos;
+		if (bound == currentBound) {
+			solvedJobs += solved;
+			solvedNanos += nanos;
+		}
+	}
+
+	/**
+	 * Returns the counts of the jobs of a bound, creating them the first time
+	 */
+	private BoundCount boundCount(int bound) {
+		BoundCount count = boundCounts.get(bound);
+		if (count == null) {
+			count = new BoundCount();
+			boundCounts.put(bound, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Counts a job request, and finishes the message
+	 * 
+	 * @param r
+	 *            the READY_FOR_NEW_JOBS message, with the opcode read
+	 */
+	private void addCredit(ReadMessage r) throws IOException {
+		readJobCosts(r);
+		IbisIdentifier worker = r.origin().ibisIdentifier();
+		r.finish();
+		credits.put(worker, credits.get(worker) + 1);
+	}
+
+	/**
+	 * Reads the number of cubes a worker solved since its last message, and
+	 * the time it took
+	 */
+	private void readJobCosts(ReadMessage r) throws IOException {
+		solvedJobs += r.readInt();
+		solvedNanos += r.readLong();
+	}
+
+	/**
+	 * Returns the time in nanoseconds to solve a cube of the current bound,
+	 * estimated from the last bound until some cubes are solved. Returns 0
+	 * if not known
+	 */
+	private double jobCost() {
+		if (solvedJobs >= Math.max(workerThreads, 1)) {
+			return (double) solvedNanos / solvedJobs;
+		}
+		return jobCost(currentBound, splitDepth);
+	}
+
+	/**
+	 * Returns the time in nanoseconds to solve a cube of a bound when
+	 * splitting at the given depth, estimated from the last bound solved.
+	 * Returns 0 if not known
+	 */
+	private double jobCost(int bound, int depth) {
+		return lastBoundCost * Math.pow(boundCostGrowth, bound - lastBound)
+				/ jobCounts[depth];
+	}
+
+	/**
+	 * Chooses the number of twists the Master does to generate the jobs of a
+	 * bound. The depth is the lowest one that gives jobsPerThread jobs per
+	 * thread of the workers. It is deeper when a job would take longer than
+	 * a message of jobs should (see batchSize(IbisIdentifier)), as the jobs of every bound
+	 * take about the branching factor longer than the jobs of the bound before.
+	 * 
+	 * @return the depth to split the bound at, the bound itself if the Master
+	 *         solves the bound alone as too few jobs can be generated
+	 */
+	private int splitDepth(int bound) {
+		long wanted = (long) jobsPerThread * workerThreads;
+		int deepest = Math.min(bound - 1, jobCounts.length - 1);
+		if (jobCounts[Math.max(deepest, 0)] < wanted
+				&& deepest < jobCounts.length - 1) {
+			// not worth sending, the bound is small
+			return bound;
+		}
+
+		int depth = 0;
+		while (depth < deepest && jobCounts[depth] < wanted) {
+			depth++;
+		}
+		while (depth < deepest
+				&& jobCost(bound, depth) > batchTarget * 1000000.0) {
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * Counts the twist sequences the Master generates of every length, until
+	 * there are more than maxJobs of them. Only the sequences that can be
+	 * part of a shortest solution are generated (see Cube.canTwist())
+	 * 
+	 * @return the number of sequences of every length
+	 */
+	private static long[] countJobs(int size) {
+		int moves = Cube.moves(size);
+		ArrayList<Long> result = new ArrayList<Long>();
+
+		// sequences per last twist + 1, not repeated and repeated
+		long[][] counts = new long[moves + 1][2];
+		counts[0][0] = 1;
+		long total = 1;
+		while (total <= maxJobs) {
+			result.add(total);
+			long[][] next = new long[moves + 1][2];
+			total = 0;
+			for (int last = -1; last < moves; last++) {
+				for (int repeated = 0; repeated < 2; repeated++) {
+					long count = counts[last + 1][repeated];
+					if (count == 0) {
+						continue;
+					}
+					for (int move = 0; move < moves; move++) {
+						if (Cube.canFollow(size, last, repeated == 1, move)) {
+							next[move + 1][move == last ? 1 : 0] += count;
+							total += count;
+						}
+					}
 				}
 			}
+			counts = next;
+		}
+
+		long[] jobCounts = new long[result.size()];
+		for (int i = 0; i < jobCounts.length; i++) {
+			jobCounts[i] = result.get(i);
+		}
+		return jobCounts;
+	}
+
+	/**
+	 * Returns the number of cubes to send in a message, so that a worker
+	 * solves them in about batchTarget milliseconds. A message gets at most
+	 * half of the cubes left per worker, so the workers finish the bound at
+	 * about the same time
+	 * 
+	 * @param worker
+	 *            the worker the message is sent to
+	 */
+	private int batchSize(IbisIdentifier worker) {
+		double cost = jobCost();
+		int size = minCubesToSend;
+		if (cost > 0) {
+			// the threads of the worker solve the cubes in parallel
+			size = (int) Math.min(maxCubesToSend, batchTarget * 1000000.0
+					* threadsPerWorker.get(worker) / cost);
+		}
+		int workers = 2 * masterSendPorts.size();
+		size = Math.min(size, (queuedJobs + workers - 1) / workers);
+		return Math.max(size, 1);
+	}
+
+	/**
+	 * Logs the split depth and the sizes of the messages of cubes sent for the
+	 * bound, and starts measuring the time to solve a cube of the next bound
+	 */
+	private void endBound(int bound) {
+		double cost = jobCost();
+		BoundCount count = boundCounts.remove(bound);
+		batchLog.append("Bound " + bound + ": " + count.jobs + " cubes of "
+				+ count.depth + " twists for " + count.sequences
+				+ " sequences, ");
+		if (count.batches > 0) {
+			batchLog.append(count.batches + " messages of "
+					+ count.smallestBatch + " to " + count.largestBatch
+					+ " cubes, " + count.reruns + " cubes rerun, ");
 		}
+		batchLog.append(Math.round(cost / 1000) + " us per cube\n");
+		if (lastBoundCost > 0 && solvedNanos > 0) {
+			boundCostGrowth = solvedNanos / lastBoundCost;
+		}
+		lastBoundCost = solvedNanos;
+		lastBound = bound;
+
+		// the jobs of the next bound solved so far
+		currentBound = bound + 1;
+		count = boundCount(currentBound);
+		solvedJobs = count.solved;
+		solvedNanos = count.nanos;
 	}
 
 	/**
@@ -156,16 +652,36 @@ public class Master {
 				SendPort port = rubiks.myIbis
 						.createSendPort(Rubiks.portMasterToWorker);
 				masterSendPorts.put(ibis, port);
+				credits.put(ibis, 0);
+				ownJobsQueues.put(ibis, new LinkedList<Job>());
 				port.connect(ibis, "receive port");
 			}
 		}
 	}
 
+	/**
+	 * Sends the start cube to all the workers, before any job. The jobs only
+	 * hold the twists from the start cube to the cube to search. Waits for
+	 * every worker to reply with its number of threads
+	 */
+	private void sendStartCube() throws IOException {
+		for (SendPort port : masterSendPorts.values()) {
+			WriteMessage w = port.newMessage();
+			Rubiks.writeStart(w, startCube);
+			w.finish();
+		}
+		while (threadsPerWorker.size() < masterSendPorts.size()) {
+			handleMessage(masterReceivePort.receive());
+		}
+	}
+
 	/**
 	 * Function that starts the computation of the Master node. While the bound
-	 * is <= than the localTwistsBound it tries to resolve locally the start
-	 * cube Then it sends to cube to worker. If some solutions are found for the
-	 * current bound it informs the worker that they can stop.
+	 * is too small to split into jobs (see splitDepth()) it tries to resolve
+	 * locally the start cube Then it sends to cube to worker. If some
+	 * solutions are found for the current bound it informs the worker that
+	 * they can stop. With --overlap the workers get the jobs of the next
+	 * bound while the last jobs of a bound are solved (see finishBound())
 	 */
 	private void masterComputation() throws Exception {
 		int bound = 0;
@@ -175,25 +691,40 @@ public class Master {
 			bound++;
 			startCube.setBound(bound);
 			System.out.print(" " + bound);
+			currentBound = bound;
 
-			if (bound <= localTwistsBound) { // local computation
-				result = Rubiks.solutions(startCube, cache);
+			if (generatedBound < bound && splitDepth(bound) >= bound) {
+				// local computation
+				result = Rubiks.solutions(startCube);
+			} else if (rubiks.stealing) { // workers steal from each other
+				generateJobs(bound);
+				int jobs = jobsQueue.size();
+				dealJobs();
+				result = collectReportsFromWorkers(bound, jobs);
+				endBound(bound);
+			} else if (rubiks.overlapping) { // no pause between the bounds
+				if (generatedBound < bound) {
+					generateJobs(bound);
+				}
+				result = finishBound(bound);
+				endBound(bound);
 			} else { // send work to workers
-				generateJobsForCurrentBound(startCube, cache);
+				generateJobs(bound);
 				// Making the queue empty
-				while (!cubesQueue.isEmpty()) {
-					sendJobs(true);
+				while (queuedJobs > 0) {
+					sendJobs();
 				}
 				// Pausing the worker to ask for new jobs
 				sendMessageToAllWorkers(Rubiks.PAUSE_WORKER_COMPUTATION);
 
 				// Collecting the results
 				result = collectResultsFromWorkers();
+				endBound(bound);
 
 				// If no solutions are found the Master advises the Workers to
 				// continue
 				// otherwise it advises the Workers to stop
-				String msg = Rubiks.CONTINUE_COMPUTATION;
+				byte msg = Rubiks.CONTINUE_COMPUTATION;
 				if (result > 0) {
 					msg = Rubiks.FINALIZE_MESSAGE;
 				}
@@ -202,33 +733,132 @@ public class Master {
 						.entrySet()) {
 					SendPort port = entry.getValue();
 					WriteMessage w = port.newMessage();
-					w.writeString(msg);
+					w.writeByte(msg);
 					w.finish();
 				}
 			}
 		}
+		if (rubiks.stealing || rubiks.overlapping) {
+			for (SendPort port : masterSendPorts.values()) {
+				WriteMessage w = port.newMessage();
+				w.writeByte(Rubiks.FINALIZE_MESSAGE);
+				w.finish();
+			}
+		}
+
 		System.out.println();
 		System.out.println("Solving cube possible in " + result + " ways of "
 				+ bound + " steps");
 
 	}
 
+	/**
+	 * Waits until all workers replied to the finalize message. Until then the
+	 * workers can still send requests and reports of the next bound, which
+	 * are dropped
+	 */
+	private void waitForWorkersToEnd() throws IOException {
+		int ended = 0;
+		while (ended < masterSendPorts.size()) {
+			ReadMessage r = masterReceivePort.receive();
+			byte opcode = r.readByte();
+			r.finish();
+			if (opcode == Rubiks.FINALIZE_MESSAGE) {
+				ended++;
+			}
+		}
+	}
+
+	/**
+	 * Deals all jobs in the queue out to the workers, in turn, in one message
+	 * per worker. Used when the workers steal from each other
+	 */
+	private void dealJobs() throws IOException {
+		int workers = masterSendPorts.size();
+		ArrayList<ArrayList<Job>> dealt = new ArrayList<ArrayList<Job>>();
+		for (int worker = 0; worker < workers; worker++) {
+			dealt.add(new ArrayList<Job>());
+		}
+		// the jobs worker, worker + workers, worker + 2 * workers...
+		int next = 0;
+		while (!jobsQueue.isEmpty()) {
+			dealt.get(next).add(jobsQueue.pollFirst());
+			next = (next + 1) % workers;
+		}
+		queuedJobs = 0;
+
+		int worker = 0;
+		for (SendPort port : masterSendPorts.values()) {
+			ArrayList<Job> jobs = dealt.get(worker);
+			WriteMessage w = port.newMessage();
+			Rubiks.writeJobs(w, jobs.toArray(new Job[jobs.size()]));
+			w.finish();
+			worker++;
+		}
+	}
+
+	/**
+	 * Collects the reports of the workers until all jobs of the current bound
+	 * are solved. Used when the workers steal from each other
+	 *
+	 * @param bound
+	 *            the current bound
+	 * @param jobs
+	 *            number of jobs dealt out for the bound
+	 * @return The number of solutions finded from all the workers
+	 */
+	private int collectReportsFromWorkers(int bound, int jobs)
+			throws Exception {
+		BoundCount count = boundCount(bound);
+		while (count.solved < jobs) {
+			handleMessage(masterReceivePort.receive());
+		}
+		return count.solutions;
+	}
+
+	/**
+	 * Sends the jobs left of a bound to the workers, and then the jobs of the
+	 * next bound, until the workers reported all jobs of the bound as solved.
+	 * Used when there is no pause between the bounds (--overlap). The jobs of
+	 * the next bound are only wasted if the bound has solutions
+	 *
+	 * @param bound
+	 *            the current bound
+	 * @return The number of solutions finded from all the workers
+	 */
+	private int finishBound(int bound) throws Exception {
+		BoundCount count = boundCount(bound);
+		while (count.solved < count.jobs) {
+			if (queuedJobs == 0 && generatedBound == bound) {
+				// the workers that are done with the bound go on with the
+				// next one. The jobs are only queued, so the end of the bound
+				// is noticed while they are sent
+				generateJobs(bound + 1);
+			}
+			if (queuedJobs == 0) {
+				handleMessage(masterReceivePort.receive());
+			} else {
+				sendJobs();
+			}
+		}
+		return count.solutions;
+	}
+
 	/**
 	 * Collects the solutions for the current bound from the workers
 	 * 
 	 * @return The number of solutions finded from all the workers
 	 */
 	private int collectResultsFromWorkers() throws Exception {
-		int solutionsFound = 0;
-		for (int i = 0; i < rubiks.ibisNodes.length - 1; i++) {
-			ReadMessage r = masterReceivePort.receive();
-			int solutions = Integer.parseInt(r.readString());
-			r.finish();
-			solutionsFound += solutions;
-
+		results = 0;
+		resultSolutions = 0;
+		while (results < rubiks.ibisNodes.length - 1) {
+			// prefetch requests sent before the pause message arrived are
+			// counted too
+			handleMessage(masterReceivePort.receive());
 		}
 		
-		return solutionsFound;
+		return resultSolutions;
 	}
 
 	/**
@@ -258,6 +888,24 @@ public class Master {
 			} else if (arguments[i].equalsIgnoreCase("--file")) {
 				i++;
 				fileName = arguments[i];
+			} else if (arguments[i].equalsIgnoreCase("--batch-target")) {
+				i++;
+				batchTarget = Long.parseLong(arguments[i]);
+			} else if (arguments[i].equalsIgnoreCase("--packed")
+					|| arguments[i].equalsIgnoreCase("--cubies")
+					|| arguments[i].equalsIgnoreCase("--kernels")
+					|| arguments[i].equalsIgnoreCase("--coordinates")
+					|| arguments[i].equalsIgnoreCase("--copying")
+					|| arguments[i].equalsIgnoreCase("--steal")
+					|| arguments[i].equalsIgnoreCase("--overlap")) {
+				// already handled by Rubiks.run
+			} else if (arguments[i].equalsIgnoreCase("--pdb")
+					|| arguments[i].equalsIgnoreCase("--threads")
+					|| arguments[i].equalsIgnoreCase("--prefetch")
+					|| arguments[i].equalsIgnoreCase("--table")
+					|| arguments[i].equalsIgnoreCase("--mitm")) {
+				// already handled by Rubiks.run
+				i++;
 			} else if (arguments[i].equalsIgnoreCase("--help")
 					|| arguments[i].equalsIgnoreCase("-h")) {
 				Rubiks.printUsage();
@@ -269,9 +917,14 @@ public class Master {
 			}
 		}
 
-		// create cube
+		// create cube, unless the options do not support it. Cubes loaded
+		// from a file are checked once they are read
+		String unsupported;
 		if (fileName == null) {
-			startCube = new Cube(size, twists, seed);
+			unsupported = Cube.unsupportedMode(size);
+			if (unsupported == null) {
+				startCube = new Cube(size, twists, seed);
+			}
 		} else {
 			try {
 				startCube = new Cube(fileName);
@@ -279,6 +932,12 @@ public class Master {
 				System.err.println("Cannot load cube from file: " + e);
 				System.exit(1);
 			}
+			unsupported = startCube.unsupportedMode();
+		}
+		if (unsupported != null) {
+			System.err.println(unsupported);
+			Rubiks.printUsage();
+			System.exit(1);
 		}
 
 		// print cube info
@@ -291,24 +950,25 @@ public class Master {
 	}
 
 	/**
-	 * Waits a message from all the workers, after receiving from them it
-	 * replies with the message given in input
+	 * Waits a job request from all the workers, after receiving from them it
+	 * replies with the message given in input. Requests received before are
+	 * used first
 	 * 
 	 * @param message
 	 *            The message to be delivered
 	 */
-	private void sendMessageToAllWorkers(String message) throws Exception {
+	private void sendMessageToAllWorkers(byte message) throws Exception {
 		ArrayList<WriteMessage> msgs = new ArrayList<WriteMessage>();
-		for (int i = 0; i < rubiks.ibisNodes.length - 1; i++) {
-			ReadMessage r = masterReceivePort.receive();
-			r.readString();
-			IbisIdentifier currentWorker = r.origin().ibisIdentifier();
-			r.finish();
-				SendPort port = getSendPort(currentWorker);
-				WriteMessage w = port.newMessage();
-				w.writeString(message);
-				msgs.add(w);
-			
+		for (Map.Entry<IbisIdentifier, SendPort> entry : masterSendPorts
+				.entrySet()) {
+			IbisIdentifier currentWorker = entry.getKey();
+			while (credits.get(currentWorker) == 0) {
+				handleMessage(masterReceivePort.receive());
+			}
+			credits.put(currentWorker, credits.get(currentWorker) - 1);
+			WriteMessage w = entry.getValue().newMessage();
+			w.writeByte(message);
+			msgs.add(w);
 		}
 		//Until all the messages are sent to the workers, it doesn't let the Workers to continue
 		//Otherwise this function could receive a message two times from the same Worker
@@ -331,6 +991,7 @@ public class Master {
 			this.rubiks = rubiks;
 			
 			cache = new CubeCache(startCube.getSize());
+			jobCounts = countJobs(startCube.getSize());
 			
 			//Creating the ports
 			masterReceivePort = rubiks.myIbis.createReceivePort(
@@ -340,6 +1001,7 @@ public class Master {
 			
 			//Computation
 			long start = System.currentTimeMillis();
+			sendStartCube();
 			masterComputation();
 			long end = System.currentTimeMillis();
 
@@ -350,10 +1012,55 @@ public class Master {
 			// makes the output of standard out comparable with "diff"
 			System.err.println("Solving cube took " + (end - start)
 					+ " milliseconds");
+			System.err.print(batchLog);
+
+			if (rubiks.overlapping && !rubiks.stealing) {
+				waitForWorkersToEnd();
+			}
 
 		} catch (Exception exc) {
 			System.err.println(exc);
 		}
 	}
 
+	/**
+	 * Jobs of a bound, and what the workers reported about them
+	 */
+	private static class BoundCount {
+
+		/**
+		 * Number of jobs generated, and the twists done to generate them
+		 */
+		int jobs = 0;
+		int depth = 0;
+
+		/**
+		 * Number of twist sequences the jobs stand for (see Job.copies)
+		 */
+		int sequences = 0;
+
+		/**
+		 * Number of messages of jobs sent, and the fewest and most jobs in a
+		 * message
+		 */
+		int batches = 0;
+		int smallestBatch = Integer.MAX_VALUE;
+		int largestBatch = 0;
+
+		/**
+		 * Number of jobs sent in RERUN messages, to the worker that solved
+		 * them for an earlier bound
+		 */
+		int reruns = 0;
+
+		/**
+		 * Number of jobs reported as solved, the solutions found and the time
+		 * in nanoseconds the jobs took. Only used when the workers report
+		 * their jobs (--steal and --overlap)
+		 */
+		int solved = 0;
+		int solutions = 0;
+		long nanos = 0;
+	}
+
 }
@@ -0,0 +1,511 @@
+package rubiks.ipl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pattern databases for cubes of size 2 and 3. A pattern database holds, for
+ * every way a subset of the pieces of the cube can be placed, the number of
+ * twists needed to put just those pieces back. The largest of these numbers
+ * is a lower bound for the number of twists needed to solve the whole cube.
+ *
+ * The pieces of the cube are found with the twist tables: the elements moved
+ * by the same twists belong to the same piece. Each database is generated
+ * once with a breadth first search from the solved cube, and stored in a file
+ * with two distances per byte. After that the file is mapped into memory, so
+ * all processes on a machine share the same copy through the page cache.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public class PatternDatabase {
+
+    // distances are stored in 4 bits, larger distances are stored as this
+    private static final int MAX_DISTANCE = 15;
+
+    // bits used per piece in the state of a kind of pieces (see Kind.state())
+    private static final int LANE_BITS = 5;
+
+    // directory the databases are stored in, null if not used
+    private static File directory = null;
+
+    // loaded databases per size of cube
+    private static final Map<Integer, PatternDatabase> loaded = new HashMap<Integer, PatternDatabase>();
+
+    private final Kind corners;
+
+    private final Kind edges; // null for cubes without edges
+
+    private final Table[] tables;
+
+    // elements of the corner no twist moves, and their colors when solved
+    private final int[] fixed;
+
+    private final byte[] fixedColors;
+
+    /**
+     * Sets the directory pattern databases are stored in, and generated in if
+     * they do not exist yet. Searches only use pattern databases once this is
+     * set.
+     *
+     * @param directory
+     *            directory of the database files
+     */
+    public static synchronized void setDirectory(File directory) {
+        PatternDatabase.directory = directory;
+    }
+
+    /**
+     * Returns the pattern databases for a cube, loading or generating them the
+     * first time they are needed.
+     *
+     * @param cube
+     *            cube to get the pattern databases for
+     * @return the pattern databases, or null if no directory is set, the size
+     *         of the cube is not supported or its colors are not the standard
+     *         ones
+     */
+    public static synchronized PatternDatabase get(Cube cube) {
+        int size = cube.getSize();
+        if (directory == null || size < 2 || size > 3) {
+            return null;
+        }
+
+        PatternDatabase result = loaded.get(size);
+        if (result == null) {
+            try {
+                result = new PatternDatabase(size, directory);
+            } catch (IOException e) {
+                throw new Error("cannot load pattern databases from "
+                        + directory, e);
+            }
+            loaded.put(size, result);
+        }
+
+        // the databases only know the solved cube with the standard colors
+        for (int i = 0; i < result.fixed.length; i++) {
+            if (cube.getColor(result.fixed[i]) != result.fixedColors[i]) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates the pattern databases for cubes of the given size.
+     */
+    private PatternDatabase(int size, File directory) throws IOException {
+        int[][] sources = Cube.twistSources(size);
+        Cube solved = new Cube(size);
+
+        // group the elements by the twists moving them, in order of their
+        // first element
+        Map<Integer, List<Integer>> pieces = new LinkedHashMap<Integer, List<Integer>>();
+        for (int i = 0; i < sources[0].length; i++) {
+            int moves = 0;
+            for (int move = 0; move < sources.length; move++) {
+                if (sources[move][i] != i) {
+                    moves |= 1 << move;
+                }
+            }
+            if (!pieces.containsKey(moves)) {
+                pieces.put(moves, new ArrayList<Integer>());
+            }
+            pieces.get(moves).add(i);
+        }
+
+        List<int[]> cornerPositions = new ArrayList<int[]>();
+        List<int[]> edgePositions = new ArrayList<int[]>();
+        int[] fixedCorner = null;
+        for (Map.Entry<Integer, List<Integer>> piece : pieces.entrySet()) {
+            int[] elements = new int[piece.getValue().size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = piece.getValue().get(i);
+            }
+
+            if (piece.getKey() == 0) {
+                fixedCorner = elements;
+            } else if (onDifferentAxes(elements, size)) {
+                // centers of opposite sides are moved by the same twists,
+                // but are not a piece
+                if (elements.length == 3) {
+                    cornerPositions.add(elements);
+                } else if (elements.length == 2) {
+                    edgePositions.add(elements);
+                }
+            }
+        }
+
+        if (fixedCorner == null || fixedCorner.length != 3
+                || cornerPositions.size() != 7
+                || edgePositions.size() != (size == 3 ? 12 : 0)) {
+            throw new Error("unexpected pieces for cube of size " + size);
+        }
+
+        fixed = fixedCorner;
+        fixedColors = new byte[fixed.length];
+        for (int i = 0; i < fixed.length; i++) {
+            fixedColors[i] = solved.getColor(fixed[i]);
+        }
+
+        corners = new Kind(cornerPositions, sources, solved);
+        List<Table> tables = new ArrayList<Table>();
+        tables.add(new Table(corners, 0, 7, directory, "cube" + size
+                + "-corners.pdb"));
+
+        if (size == 3) {
+            edges = new Kind(edgePositions, sources, solved);
+            tables.add(new Table(edges, 0, 6, directory, "cube3-edges0.pdb"));
+            tables.add(new Table(edges, 6, 6, directory, "cube3-edges6.pdb"));
+        } else {
+            edges = null;
+        }
+        this.tables = tables.toArray(new Table[tables.size()]);
+    }
+
+    /**
+     * Returns a lower bound for the number of twists needed to solve a cube:
+     * the largest distance in any of the databases.
+     *
+     * @param cube
+     *            the cube, with the same size as this database
+     * @return a number of twists that is never more than needed
+     */
+    public int lowerBound(Cube cube) {
+        long cornerState = corners.state(cube);
+        long edgeState = edges == null ? 0 : edges.state(cube);
+        if (cornerState < 0 || edgeState < 0) {
+            // not a cube with the standard colors
+            return 0;
+        }
+
+        int result = 0;
+        for (Table table : tables) {
+            int distance = table.distance(table.kind == corners ? cornerState
+                    : edgeState);
+            result = Math.max(result, distance);
+        }
+        return result;
+    }
+
+    /**
+     * Checks if all elements are on sides of different axes, as the elements
+     * of a piece are.
+     */
+    private static boolean onDifferentAxes(int[] elements, int size) {
+        boolean[] axes = new boolean[3];
+        for (int element : elements) {
+            int side = element / (size * size);
+            int axis;
+            if (side == Cube.TOP || side == Cube.BOTTOM) {
+                axis = 0;
+            } else if (side == Cube.LEFT || side == Cube.RIGHT) {
+                axis = 1;
+            } else {
+                axis = 2;
+            }
+            if (axes[axis]) {
+                return false;
+            }
+            axes[axis] = true;
+        }
+        return true;
+    }
+
+    /**
+     * Pieces of a cube with the same number of elements (corners or edges),
+     * and how twists move them. Pieces are numbered by the position they have
+     * in the solved cube. The orientation of a piece is the index of the
+     * element of its position showing the color its first element has in the
+     * solved cube.
+     */
+    private static final class Kind {
+
+        // per position the elements of the piece at that position
+        final int[][] positions;
+
+        // number of orientations of a piece
+        final int orientations;
+
+        // for each set of colors (a bit per color), the piece, or -1
+        final int[] pieces = new int[1 << Cube.SIDES];
+
+        // per piece the color that gives its orientation
+        final byte[] reference;
+
+        /*
+         * per twist, for each lane (position * orientations + orientation of
+         * a piece) the lane after the twist.
+         */
+        final int[][] twists;
+
+        Kind(List<int[]> positions, int[][] sources, Cube solved) {
+            this.positions = positions.toArray(new int[positions.size()][]);
+            orientations = this.positions[0].length;
+
+            Arrays.fill(pieces, -1);
+            reference = new byte[this.positions.length];
+            int[] positionOf = new int[sources[0].length];
+            for (int position = 0; position < this.positions.length; position++) {
+                int colors = 0;
+                for (int element : this.positions[position]) {
+                    colors |= 1 << solved.getColor(element);
+                    positionOf[element] = position;
+                }
+                pieces[colors] = position;
+                reference[position] = solved.getColor(this.positions[position][0]);
+            }
+
+            twists = new int[sources.length][this.positions.length
+                    * orientations];
+            for (int move = 0; move < sources.length; move++) {
+                // where each element goes
+                int[] target = new int[sources[move].length];
+                for (int i = 0; i < target.length; i++) {
+                    target[sources[move][i]] = i;
+                }
+
+                for (int position = 0; position < this.positions.length; position++) {
+                    for (int orientation = 0; orientation < orientations; orientation++) {
+                        int element = target[this.positions[position][orientation]];
+                        int next = positionOf[element];
+                        int nextOrientation = indexOf(this.positions[next],
+                                element);
+                        twists[move][position * orientations + orientation] = next
+                                * orientations + nextOrientation;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the lane of every piece of this kind in a cube, LANE_BITS
+         * bits per piece, or -1 if the colors of a piece are unknown.
+         */
+        long state(Cube cube) {
+            long result = 0;
+            for (int position = 0; position < positions.length; position++) {
+                int[] elements = positions[position];
+                int colors = 0;
+                for (int element : elements) {
+                    colors |= 1 << cube.getColor(element);
+                }
+                int piece = pieces[colors];
+                if (piece < 0) {
+                    return -1;
+                }
+
+                int orientation = 0;
+                while (orientation < elements.length
+                        && cube.getColor(elements[orientation]) != reference[piece]) {
+                    orientation++;
+                }
+                result |= (long) (position * orientations + orientation) << (LANE_BITS * piece);
+            }
+            return result;
+        }
+
+        private static int indexOf(int[] elements, int element) {
+            for (int i = 0; i < elements.length; i++) {
+                if (elements[i] == element) {
+                    return i;
+                }
+            }
+            throw new Error("element not part of piece");
+        }
+    }
+
+    /**
+     * A database for a range of pieces of one kind, indexed by the positions
+     * of the pieces (as a permutation of the positions) and their
+     * orientations.
+     */
+    private static final class Table {
+
+        final Kind kind;
+
+        // first piece in this database
+        final int first;
+
+        // number of pieces in this database
+        final int count;
+
+        // number of combinations of orientations
+        final int orientationCount;
+
+        final long entries;
+
+        final MappedByteBuffer distances;
+
+        Table(Kind kind, int first, int count, File directory, String name)
+                throws IOException {
+            this.kind = kind;
+            this.first = first;
+            this.count = count;
+
+            int orientationCount = 1;
+            long entries = 1;
+            for (int i = 0; i < count; i++) {
+                orientationCount *= kind.orientations;
+                entries *= kind.positions.length - i;
+            }
+            this.orientationCount = orientationCount;
+            this.entries = entries * orientationCount;
+
+            Path file = new File(directory, name).toPath();
+            long bytes = (this.entries + 1) / 2;
+            if (!Files.exists(file) || Files.size(file) != bytes) {
+                generate(file);
+            }
+
+            FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ);
+            try {
+                distances = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        bytes);
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * Returns the distance stored for a state of the pieces (see
+         * Kind.state())
+         */
+        int distance(long state) {
+            int index = index(state);
+            return (distances.get(index >>> 1) >>> ((index & 1) << 2)) & 0xF;
+        }
+
+        /**
+         * Index in the database of a state of the pieces
+         */
+        private int index(long state) {
+            int orientations = kind.orientations;
+            int positionCount = kind.positions.length;
+            int used = 0;
+            int permutation = 0;
+            int orientation = 0;
+
+            for (int i = 0; i < count; i++) {
+                int lane = (int) (state >>> (LANE_BITS * (first + i))) & 31;
+                int position = lane / orientations;
+
+                // the rank of the position among the positions still free
+                int free = position
+                        - Integer.bitCount(used & ((1 << position) - 1));
+                permutation = permutation * (positionCount - i) + free;
+                used |= 1 << position;
+                orientation = orientation * orientations + lane
+                        % orientations;
+            }
+            return permutation * orientationCount + orientation;
+        }
+
+        /**
+         * State of the pieces at an index in the database (see index())
+         */
+        private long state(int index) {
+            int orientations = kind.orientations;
+            int positionCount = kind.positions.length;
+            int permutation = index / orientationCount;
+            int orientation = index % orientationCount;
+
+            int[] free = new int[count];
+            int[] orientationOf = new int[count];
+            for (int i = count - 1; i >= 0; i--) {
+                free[i] = permutation % (positionCount - i);
+                permutation /= positionCount - i;
+                orientationOf[i] = orientation % orientations;
+                orientation /= orientations;
+            }
+
+            long result = 0;
+            int used = 0;
+            for (int i = 0; i < count; i++) {
+                // the free[i]th position not used yet
+                int position = 0;
+                for (int skip = free[i]; skip > 0 || (used & (1 << position)) != 0; position++) {
+                    if ((used & (1 << position)) == 0) {
+                        skip--;
+                    }
+                }
+                used |= 1 << position;
+                result |= (long) (position * orientations + orientationOf[i]) << (LANE_BITS * (first + i));
+            }
+            return result;
+        }
+
+        /**
+         * Fills the database with a breadth first search from the solved cube,
+         * and writes it to a file. The file is written under another name
+         * first, so other processes never see half a database.
+         */
+        private void generate(Path file) throws IOException {
+            System.err.println("Generating pattern database " + file);
+            long start = System.currentTimeMillis();
+
+            byte[] depths = new byte[(int) entries];
+            Arrays.fill(depths, (byte) -1);
+
+            long solved = 0;
+            for (int i = first; i < first + count; i++) {
+                // in the solved cube piece i is at position i, not turned
+                solved |= (long) (i * kind.orientations) << (LANE_BITS * i);
+            }
+            depths[index(solved)] = 0;
+
+            boolean reached = true;
+            for (int depth = 0; reached; depth++) {
+                reached = false;
+                for (int index = 0; index < depths.length; index++) {
+                    if (depths[index] != depth) {
+                        continue;
+                    }
+                    long state = state(index);
+                    for (int[] twist : kind.twists) {
+                        long next = 0;
+                        for (int i = first; i < first + count; i++) {
+                            int shift = LANE_BITS * i;
+                            next |= (long) twist[(int) (state >>> shift) & 31] << shift;
+                        }
+                        int nextIndex = index(next);
+                        if (depths[nextIndex] < 0) {
+                            depths[nextIndex] = (byte) (depth + 1);
+                            reached = true;
+                        }
+                    }
+                }
+            }
+
+            byte[] packed = new byte[(depths.length + 1) / 2];
+            for (int index = 0; index < depths.length; index++) {
+                int depth = Math.min(depths[index] < 0 ? MAX_DISTANCE
+                        : depths[index], MAX_DISTANCE);
+                packed[index >>> 1] |= depth << ((index & 1) << 2);
+            }
+
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), file
+                    .getFileName().toString(), ".tmp");
+            Files.write(temporary, packed);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            System.err.println("Generated pattern database " + file + " in "
+                    + (System.currentTimeMillis() - start) + " milliseconds");
+        }
+    }
+}
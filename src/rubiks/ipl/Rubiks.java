@@ -1,10 +1,17 @@
 package rubiks.ipl;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisCapabilities;
 import ibis.ipl.IbisFactory;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
 
 /**
  * Class that contains the main functions and some fields and functions that are
@@ -16,14 +23,23 @@ import ibis.ipl.PortType;
 public class Rubiks {
 
 	static PortType portMasterToWorker = new PortType(
-			PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_OBJECT,
+			PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_DATA,
 			PortType.RECEIVE_EXPLICIT, PortType.CONNECTION_ONE_TO_ONE);
 
 	static PortType portWorkerToMaster = new PortType(
-			PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_OBJECT,
+			PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_DATA,
 			PortType.RECEIVE_EXPLICIT, PortType.RECEIVE_POLL,
 			PortType.CONNECTION_MANY_TO_ONE);
 
+	/**
+	 * Port type for steal requests and their replies between workers (see
+	 * StealingWorker)
+	 */
+	static PortType portWorkerToWorker = new PortType(
+			PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_DATA,
+			PortType.RECEIVE_EXPLICIT, PortType.RECEIVE_TIMEOUT,
+			PortType.CONNECTION_MANY_TO_ONE);
+
 	static IbisCapabilities ibisCapabilities = new IbisCapabilities(
 			IbisCapabilities.ELECTIONS_STRICT,
 			IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED,
@@ -35,29 +51,77 @@ public class Rubiks {
 	 */
 	public IbisIdentifier master = null;
 
+	/*
+	 * Every message starts with one of the opcodes below, telling what the
+	 * rest of the message is
+	 */
+
 	/**
 	 * Message sent from a Worker to the Master to advise him that it's ready
 	 * for computing new jobs
 	 */
-	static final String READY_FOR_NEW_JOBS = "r";
+	static final byte READY_FOR_NEW_JOBS = 0;
 
 	/**
 	 * Message sent from the Master to a Worker to advise him that the
 	 * computation isn't ended
 	 */
-	static final String CONTINUE_COMPUTATION = "c";
+	static final byte CONTINUE_COMPUTATION = 1;
 
 	/**
 	 * Message sent from the Master to a Worker to advise him to send the
 	 * solutions finded for the current bound
 	 */
-	static final String PAUSE_WORKER_COMPUTATION = "p";
+	static final byte PAUSE_WORKER_COMPUTATION = 2;
 
 	/**
 	 * Message sent from the Master to a Worker to advise him that the
 	 * computation is ended
 	 */
-	static final String FINALIZE_MESSAGE = "f";
+	static final byte FINALIZE_MESSAGE = 3;
+
+	/**
+	 * Message with jobs, see writeJobs()
+	 */
+	static final byte JOBS = 4;
+
+	/**
+	 * Message sent from a Worker to the Master with the solutions found for
+	 * the current bound, followed by the number as an int
+	 */
+	static final byte RESULT = 5;
+
+	/**
+	 * Message sent from a StealingWorker, or a Worker with --overlap, to the
+	 * Master with the solved jobs, followed by the bound, the number of jobs
+	 * and the solutions found as ints, and the time the jobs took as a long
+	 */
+	static final byte REPORT = 6;
+
+	/**
+	 * Message sent from a StealingWorker to another to ask for jobs, followed
+	 * by the number of the request as an int. Answered with that number and a
+	 * JOBS message
+	 */
+	static final byte STEAL = 7;
+
+	/**
+	 * Message sent from the Master to every Worker before any job, with the
+	 * cube to solve, see writeStart()
+	 */
+	static final byte START = 8;
+
+	/**
+	 * Message with jobs a Worker got before, for another bound, see
+	 * writeRerun()
+	 */
+	static final byte RERUN = 9;
+
+	/**
+	 * Message sent from every Worker to the Master in reply to START, with
+	 * the number of threads it solves jobs with as an int
+	 */
+	static final byte THREADS = 10;
 
 	public Ibis myIbis = null;
 
@@ -69,8 +133,67 @@ public class Rubiks {
 	public static final boolean PRINT_SOLUTION = false;
 
 	/**
-	 * Recursive function to find a solution for a given cube. Only searches to
-	 * the bound set in the cube object.
+	 * Number of threads a Worker solves cubes with
+	 */
+	public int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Number of job requests a Worker keeps outstanding at the Master, so the
+	 * next jobs are already received when the current ones are solved
+	 */
+	public int prefetch = 1;
+
+	/**
+	 * True if the workers steal cubes from each other, instead of asking the
+	 * Master for new jobs
+	 */
+	public boolean stealing = false;
+
+	/**
+	 * True if the workers go on with the jobs of the next bound while the last
+	 * jobs of a bound are solved, instead of pausing at the end of every bound
+	 */
+	public boolean overlapping = false;
+
+	/**
+	 * True if cubes are searched by creating a new cube for every child
+	 * (--copying), instead of twisting one cube in place
+	 */
+	static boolean copying = false;
+
+	/**
+	 * Caches of the copying search, one per thread as CubeCache is not
+	 * thread safe
+	 */
+	private static final ThreadLocal<CubeCache> caches = new ThreadLocal<CubeCache>();
+
+	/**
+	 * Function to find the number of solutions for a given cube. Only searches
+	 * to the bound set in the cube object. The cube is twisted in place (see
+	 * Search), and is back in its original state when the function returns.
+	 * 
+	 * @param cube
+	 *            cube to solve
+	 * @return the number of solutions found
+	 */
+	public static int solutions(Cube cube) {
+		if (copying) {
+			CubeCache cache = caches.get();
+			if (cache == null) {
+				cache = new CubeCache(cube.getSize());
+				caches.set(cache);
+			}
+			return solutions(cube, cache);
+		}
+		return new Search(cube).solutions();
+	}
+
+	/**
+	 * Recursive function to find the number of solutions for a given cube,
+	 * creating a new cube for every child. Skips the same redundant twist
+	 * orders as Search, and counts every solution as many times as the
+	 * weight of the cube (see Cube.canTwist()). Stops with a
+	 * CancellationException when the thread is interrupted, like Search.
 	 * 
 	 * @param cube
 	 *            cube to solve
@@ -78,36 +201,198 @@ public class Rubiks {
 	 *            cache of cubes used for new cube objects
 	 * @return the number of solutions found
 	 */
-	public static int solutions(Cube cube, CubeCache cache) {
-		if (cube.isSolved()) { // ***
-			return 1;
+	private static int solutions(Cube cube, CubeCache cache) {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new CancellationException("search interrupted");
+		}
+
+		if (cube.isSolved()) {
+			return cube.getWeight();
 		}
 
 		if (cube.getTwists() >= cube.getBound()) {
 			return 0;
 		}
 
-		// generate all possible cubes from this one by twisting it in
-		// every possible way. Gets new objects from the cache
-		Cube[] children = cube.generateChildren(cache); // ****
-
 		int result = 0;
-
-		for (Cube child : children) {
-			// recursion step
-			int childSolutions = solutions(child, cache); // recursive call
+		for (int move = 0; move < Cube.moves(cube.getSize()); move++) {
+			if (!cube.canTwist(move)) {
+				continue;
+			}
+			Cube child = cube.twist(move, cache);
+			int childSolutions = solutions(child, cache);
 			if (childSolutions > 0) {
 				result += childSolutions;
 				if (PRINT_SOLUTION) {
 					child.print(System.err);
 				}
 			}
-			// put child object in cache
 			cache.put(child);
 		}
 		return result;
 	}
 
+	/**
+	 * Writes a START message: the opcode, the size of the start cube and the
+	 * colors of its elements
+	 * 
+	 * @param w
+	 *            message to write to
+	 * @param cube
+	 *            the start cube
+	 */
+	static void writeStart(WriteMessage w, Cube cube) throws IOException {
+		int size = cube.getSize();
+		byte[] colors = new byte[Cube.SIDES * size * size];
+		cube.getColors(colors, 0);
+
+		w.writeByte(START);
+		w.writeInt(size);
+		w.writeArray(colors);
+	}
+
+	/**
+	 * Reads the start cube of a START message, after the opcode (see
+	 * writeStart())
+	 * 
+	 * @param r
+	 *            message to read from
+	 * @return the start cube
+	 */
+	static Cube readStart(ReadMessage r) throws IOException {
+		int size = r.readInt();
+		byte[] colors = new byte[Cube.SIDES * size * size];
+		r.readArray(colors);
+
+		Cube cube = new Cube(size);
+		cube.setColors(colors, 0);
+		return cube;
+	}
+
+	/**
+	 * Writes a JOBS message: the opcode, the number of jobs, their bound and
+	 * number of twists, the ids and copies of the jobs, and the twists of all
+	 * jobs in one array
+	 * 
+	 * @param w
+	 *            message to write to
+	 * @param jobs
+	 *            jobs with the same bound and number of twists
+	 */
+	static void writeJobs(WriteMessage w, Job[] jobs) throws IOException {
+		w.writeByte(JOBS);
+		w.writeInt(jobs.length);
+		if (jobs.length == 0) {
+			return;
+		}
+
+		int length = jobs[0].moves.length;
+		short[] moves = new short[jobs.length * length];
+		for (int i = 0; i < jobs.length; i++) {
+			System.arraycopy(jobs[i].moves, 0, moves, i * length, length);
+		}
+
+		int[] ids = new int[jobs.length];
+		int[] copies = new int[jobs.length];
+		for (int i = 0; i < jobs.length; i++) {
+			ids[i] = jobs[i].id;
+			copies[i] = jobs[i].copies;
+		}
+
+		w.writeInt(jobs[0].bound);
+		w.writeInt(length);
+		w.writeArray(ids);
+		w.writeArray(copies);
+		w.writeArray(moves);
+	}
+
+	/**
+	 * Reads the jobs of a JOBS message, after the opcode (see writeJobs())
+	 * 
+	 * @param r
+	 *            message to read from
+	 * @return the jobs of the message
+	 */
+	static Job[] readJobs(ReadMessage r) throws IOException {
+		Job[] jobs = new Job[r.readInt()];
+		if (jobs.length == 0) {
+			return jobs;
+		}
+
+		int bound = r.readInt();
+		int length = r.readInt();
+		int[] ids = new int[jobs.length];
+		r.readArray(ids);
+		int[] copies = new int[jobs.length];
+		r.readArray(copies);
+		short[] moves = new short[jobs.length * length];
+		r.readArray(moves);
+
+		for (int i = 0; i < jobs.length; i++) {
+			short[] jobMoves = new short[length];
+			System.arraycopy(moves, i * length, jobMoves, 0, length);
+			jobs[i] = new Job(ids[i], bound, jobMoves, copies[i]);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Writes a RERUN message: the opcode, the number of jobs, their bound and
+	 * their ids. The Worker got the twists and copies of the jobs before
+	 * 
+	 * @param w
+	 *            message to write to
+	 * @param jobs
+	 *            jobs with the same bound
+	 */
+	static void writeRerun(WriteMessage w, Job[] jobs) throws IOException {
+		w.writeByte(RERUN);
+		w.writeInt(jobs.length);
+		if (jobs.length == 0) {
+			return;
+		}
+
+		int[] ids = new int[jobs.length];
+		for (int i = 0; i < jobs.length; i++) {
+			ids[i] = jobs[i].id;
+		}
+		w.writeInt(jobs[0].bound);
+		w.writeArray(ids);
+	}
+
+	/**
+	 * Reads the jobs of a RERUN message, after the opcode (see writeRerun())
+	 * 
+	 * @param r
+	 *            message to read from
+	 * @param frontier
+	 *            the jobs received before, per id
+	 * @return the jobs of the message
+	 * @throws IOException
+	 *             also if the message has a job that was not received before
+	 */
+	static Job[] readRerun(ReadMessage r, Map<Integer, Job> frontier)
+			throws IOException {
+		Job[] jobs = new Job[r.readInt()];
+		if (jobs.length == 0) {
+			return jobs;
+		}
+
+		int bound = r.readInt();
+		int[] ids = new int[jobs.length];
+		r.readArray(ids);
+
+		for (int i = 0; i < jobs.length; i++) {
+			Job job = frontier.get(ids[i]);
+			if (job == null) {
+				throw new IOException("RERUN message with job " + ids[i]
+						+ ", which was never received in a JOBS message");
+			}
+			jobs[i] = new Job(ids[i], bound, job.moves, job.copies);
+		}
+		return jobs;
+	}
+
 	public static void printUsage() {
 		System.out.println("Rubiks Cube solver");
 		System.out.println("");
@@ -125,10 +410,34 @@ public class Rubiks {
 		System.out
 				.println("--seed SEED\t\tSeed of random generator (default: 0");
 		System.out
-				.println("--threads THREADS\t\tNumber of threads to use (default: 1, other values not supported by sequential version)");
+				.println("--threads THREADS\t\tNumber of threads per worker (default: number of cores)");
+		System.out
+				.println("--prefetch REQUESTS\t\tNumber of job requests a worker keeps outstanding (default: 1)");
+		System.out
+				.println("--batch-target MILLISECONDS\t\tTime a worker should take to solve a message of jobs (default: 100)");
 		System.out.println("");
 		System.out
 				.println("--file FILE_NAME\t\tLoad cube from given file instead of generating it");
+		System.out
+				.println("--packed\t\tStore cubes packed, 3 bits per element (sizes up to " + Cube.MAX_PACKED_SIZE + ")");
+		System.out
+				.println("--cubies\t\tStore cubes as the positions and orientations of their pieces (sizes 2 and 3)");
+		System.out
+				.println("--kernels\t\tTwist cubes with code generated for their size (sizes up to " + KernelGenerator.MAX_SIZE + ")");
+		System.out
+				.println("--coordinates\t\tSearch on coordinates of the pieces twisted with move tables, unless other tables are used (sizes 2 and 3)");
+		System.out
+				.println("--copying\t\tCopy every child instead of twisting one cube in place (slower)");
+		System.out
+				.println("--steal\t\tWorkers steal jobs from each other, the master only deals out the jobs of each bound");
+		System.out
+				.println("--overlap\t\tWorkers get the jobs of the next bound while the last jobs of a bound are solved (not with --steal)");
+		System.out
+				.println("--pdb DIRECTORY\t\tUse pattern databases in DIRECTORY to cut off the search, generating them the first time (sizes 2 and 3)");
+		System.out
+				.println("--mitm DEPTH\t\tCount the solutions from both ends, with a table of the cubes up to DEPTH twists from the solved cube (default: 0, not used)");
+		System.out
+				.println("--table MEGABYTES\t\tRemember the solutions below cubes searched before in a table of MEGABYTES per thread (default: 0, no table)");
 		System.out.println("");
 	}
 
@@ -142,7 +451,7 @@ public class Rubiks {
 	 */
 	private void initialize() throws Exception {
 		myIbis = IbisFactory.createIbis(ibisCapabilities, null,
-				portMasterToWorker, portWorkerToMaster);
+				portMasterToWorker, portWorkerToMaster, portWorkerToWorker);
 
 		// sleep for a second to wait all the nodes to be ready
 		Thread.sleep(1000);
@@ -159,13 +468,44 @@ public class Rubiks {
 	 */
 	private void run(String[] arguments) throws Exception {
 
-		int size = 3; // retrieving the size of the cube that is needed by the
-						// worker nodes to create the CubeCache
-
 		for (int i = 0; i < arguments.length; i++) {
-			if (arguments[i].equalsIgnoreCase("--size")) {
+			if (arguments[i].equalsIgnoreCase("--packed")) {
+				// both the Master and the Workers store their cubes packed
+				Cube.setPacked(true);
+			} else if (arguments[i].equalsIgnoreCase("--cubies")) {
+				// the Master and the Workers, the start cube is sent as colors
+				Cube.setCubies(true);
+			} else if (arguments[i].equalsIgnoreCase("--kernels")) {
+				// every node generates its own kernel
+				Cube.setKernels(true);
+			} else if (arguments[i].equalsIgnoreCase("--coordinates")) {
+				// every node generates its own move tables
+				Coordinates.setEnabled(true);
+			} else if (arguments[i].equalsIgnoreCase("--copying")) {
+				copying = true;
+			} else if (arguments[i].equalsIgnoreCase("--steal")) {
+				stealing = true;
+			} else if (arguments[i].equalsIgnoreCase("--overlap")) {
+				overlapping = true;
+			} else if (arguments[i].equalsIgnoreCase("--threads")) {
+				i++;
+				threads = Integer.parseInt(arguments[i]);
+			} else if (arguments[i].equalsIgnoreCase("--prefetch")) {
 				i++;
-				size = Integer.parseInt(arguments[i]);
+				prefetch = Integer.parseInt(arguments[i]);
+			} else if (arguments[i].equalsIgnoreCase("--pdb")) {
+				// every node loads the databases the first time it needs
+				// them, nodes on the same machine share the files
+				i++;
+				PatternDatabase.setDirectory(new File(arguments[i]));
+			} else if (arguments[i].equalsIgnoreCase("--mitm")) {
+				// every node generates the tables it needs
+				i++;
+				MeetInTheMiddle.setDepth(Integer.parseInt(arguments[i]));
+			} else if (arguments[i].equalsIgnoreCase("--table")) {
+				// a table per thread, on the Master too
+				i++;
+				TranspositionTable.setMemory(Integer.parseInt(arguments[i]));
 			}
 		}
 
@@ -174,7 +514,11 @@ public class Rubiks {
 		if (master.equals(myIbis.identifier())) {
 			new Master(arguments, this);
 		} else {
-			new Worker(size, this);
+			if (stealing) {
+				new StealingWorker(this);
+			} else {
+				new Worker(this);
+			}
 		}
 
 		// The computation is performed inside the constructor, so when this
@@ -0,0 +1,416 @@
+package rubiks.ipl;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Depth first search for solutions that twists a single cube in place. Every
+ * twist is undone after its subtree is searched, so no cubes are copied and
+ * no children are created. Twist sequences that only differ in the order of
+ * twists over the same axis are searched once, with a weight (see
+ * Cube.canTwist()). A search stops with a CancellationException when its
+ * thread is interrupted, leaving the cube twisted.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public class Search {
+
+    /**
+     * Cube searched, twisted in place
+     */
+    private final Cube cube;
+
+    /**
+     * Number of twists possible for the cube
+     */
+    private final int moves;
+
+    /**
+     * Size of the cube
+     */
+    private final int size;
+
+    /**
+     * Highest lower bound of the number of twists left (see
+     * Cube.lowerBound()). Only cubes with fewer twists left than this can be
+     * cut off by the lower bound.
+     */
+    private final int maxLowerBound;
+
+    /**
+     * Pattern databases giving a lower bound of the number of twists left,
+     * null if not used
+     */
+    private final PatternDatabase database;
+
+    /**
+     * Table of the solutions below the cubes searched before, null if not
+     * used
+     */
+    private final TranspositionTable table;
+
+    /**
+     * Coordinates of the cube, null if not used. With coordinates the search
+     * twists a few ints with table lookups instead of the cube
+     */
+    private final Coordinates coordinates;
+
+    /**
+     * Coordinates of the cubes searched, per number of twists left
+     */
+    private int[][] coordinateStates = new int[0][];
+
+    /**
+     * Cubes a number of twists from the solved cube, null if not used. The
+     * search stops at goalLeft twists left to the bound and counts the twists
+     * from there to the solved cube in this table (see MeetInTheMiddle)
+     */
+    private MeetInTheMiddle goals = null;
+
+    private int goalLeft = -1;
+
+    /**
+     * Colors of a cube looked up in goals
+     */
+    private final long[] state;
+
+    /**
+     * Fewest twists left to the bound to look cubes up in the transposition
+     * table at. Not used with MeetInTheMiddle, which counts the solutions of
+     * a cube differently for every depth
+     */
+    private int tableLeft = Integer.MAX_VALUE;
+
+    /**
+     * Twists done in the search, per number of twists leading to the cube
+     * before the twist. Only the twists from the search of the cube are
+     * set, the twists leading to the cube are only known as far as
+     * Cube.getRun() tells
+     */
+    private int[] path = new int[0];
+
+    /**
+     * Number of twists leading to the cube when the search starts
+     */
+    private int startTwists = 0;
+
+    /**
+     * Number of cubes looked at so far
+     */
+    private long nodes = 0;
+
+    /**
+     * Number of cubes looked at between two checks if the thread is
+     * interrupted, and the number left until the next check
+     */
+    private static final int INTERRUPT_CHECK = 1 << 16;
+
+    private int untilCheck = INTERRUPT_CHECK;
+
+    /**
+     * Creates a search for the given cube. The cube is twisted during the
+     * search, but is back in its original state when a search returns.
+     *
+     * @param cube
+     *            cube to solve
+     */
+    public Search(Cube cube) {
+        this.cube = cube;
+        this.size = cube.getSize();
+        this.moves = Cube.moves(size);
+        this.maxLowerBound = Cube.maxLowerBound(size);
+        this.database = PatternDatabase.get(cube);
+        this.table = TranspositionTable.get(size);
+        this.coordinates = database == null && table == null ? Coordinates
+                .get(cube) : null;
+        this.state = new long[Cube.stateWords(size)];
+    }
+
+    /**
+     * Finds the number of solutions for the cube. Only searches to the bound
+     * set in the cube object. Continues from the twists leading to the cube,
+     * and counts every solution as many times as the weight of the cube.
+     *
+     * @return the number of solutions found
+     */
+    public int solutions() {
+        goals = MeetInTheMiddle.get(cube);
+        goalLeft = goals == null ? -1 : goals.getDepth();
+        if (table != null && goals == null) {
+            tableLeft = TranspositionTable.MIN_LEFT;
+        } else {
+            tableLeft = Integer.MAX_VALUE;
+        }
+        startTwists = cube.getTwists();
+        if (path.length < cube.getBound()) {
+            path = new int[cube.getBound()];
+        }
+
+        // the coordinates only replace the plain search
+        if (coordinates != null && goals == null && !Rubiks.PRINT_SOLUTION) {
+            int left = Math.max(cube.getBound() - cube.getTwists(), 0);
+            if (coordinateStates.length <= left) {
+                coordinateStates = new int[left + 1][coordinates.count()];
+            }
+            coordinates.getState(cube, coordinateStates[left]);
+            return coordinateSolutions(left, cube.getLastTwist(),
+                    cube.getRunLength(), cube.isRepeated(), cube.getWeight());
+        }
+
+        return solutions(cube.getLastTwist(), cube.getRunLength(),
+                cube.isRepeated(), cube.getWeight());
+    }
+
+    /**
+     * Recursive function to find the number of solutions with the
+     * coordinates of the cube in coordinateStates[left]. The cube itself is
+     * not twisted. The other arguments are the same as for solutions(int,
+     * int, boolean, int)
+     *
+     * @param left
+     *            number of twists left to the bound
+     * @return the number of solutions found, times the weight
+     */
+    private int coordinateSolutions(int left, int last, int runLength,
+            boolean repeated, int weight) {
+        nodes++;
+        checkInterrupt();
+
+        int[] state = coordinateStates[left];
+        if (coordinates.isSolved(state)) {
+            return weight;
+        }
+        if (left == 0 || coordinates.lowerBound(state) > left) {
+            return 0;
+        }
+
+        int result = 0;
+        int[] child = coordinateStates[left - 1];
+        for (int move = 0; move < moves; move++) {
+            if (!Cube.canFollow(size, last, repeated, move)) {
+                continue;
+            }
+
+            boolean sameAxis = last >= 0 && Cube.sameAxis(size, move, last);
+            if (left == 1) {
+                // the cubes the twists lead to count as searched
+                nodes++;
+                if (coordinates.isSolvedAfter(state, move)) {
+                    result += sameAxis ? Cube.followingWeight(weight,
+                            runLength + 1, move == last) : weight;
+                }
+                continue;
+            }
+
+            coordinates.twist(state, move, child);
+            if (sameAxis) {
+                boolean childRepeated = move == last;
+                result += coordinateSolutions(left - 1, move, runLength + 1,
+                        childRepeated, Cube.followingWeight(weight,
+                                runLength + 1, childRepeated));
+            } else {
+                result += coordinateSolutions(left - 1, move, 1, false,
+                        weight);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Recursive function to find the number of solutions.
+     *
+     * @param last
+     *            last twist leading to the cube, -1 if none
+     * @param runLength
+     *            number of twists over the axis of the last twist at the end
+     * @param repeated
+     *            true if the last twist was done twice in a row
+     * @param weight
+     *            number of twist sequences this one stands for
+     * @return the number of solutions found, times the weight
+     */
+    private int solutions(int last, int runLength, boolean repeated,
+            int weight) {
+        nodes++;
+        checkInterrupt();
+
+        if (cube.isSolved()) {
+            return weight;
+        }
+
+        int left = cube.getBound() - cube.getTwists();
+        if (left <= 0) {
+            return 0;
+        }
+
+        // cut off when even the lower bound of the twists needed is too much
+        if (left < maxLowerBound && cube.lowerBound() > left) {
+            return 0;
+        }
+        if (database != null && database.lowerBound(cube) > left) {
+            return 0;
+        }
+
+        if (left == goalLeft) {
+            return goalSolutions(last, runLength, weight);
+        }
+        if (left >= tableLeft) {
+            return storedSolutions(left, last, runLength, repeated, weight);
+        }
+        if (left == 1) {
+            return lastTwistSolutions(last, runLength, repeated, weight);
+        }
+        return childSolutions(last, runLength, repeated, weight);
+    }
+
+    /**
+     * Finds the number of solutions for a cube with one twist left to the
+     * bound. Only checks if a twist solves the cube (see
+     * Cube.isSolvedAfter()), without twisting it. The arguments are the same
+     * as for solutions(int, int, boolean, int)
+     * 
+     * @return the number of solutions found, times the weight
+     */
+    private int lastTwistSolutions(int last, int runLength,
+            boolean repeated, int weight) {
+        int result = 0;
+
+        for (int move = 0; move < moves; move++) {
+            if (!Cube.canFollow(size, last, repeated, move)) {
+                continue;
+            }
+
+            // the cubes the twists lead to count as searched
+            nodes++;
+            if (!cube.isSolvedAfter(move)) {
+                continue;
+            }
+            if (last >= 0 && Cube.sameAxis(size, move, last)) {
+                result += Cube.followingWeight(weight, runLength + 1,
+                        move == last);
+            } else {
+                result += weight;
+            }
+            if (Rubiks.PRINT_SOLUTION) {
+                cube.twistInPlace(move);
+                cube.print(System.err);
+                cube.untwist(move);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the number of solutions for a cube with the table of the cubes
+     * near the solved cube, which is as many twists away from the solved
+     * cube as there are twists left
+     * 
+     * @param last
+     *            last twist leading to the cube, -1 if none
+     * @param runLength
+     *            number of twists over the axis of the last twist at the end
+     * @param weight
+     *            number of twist sequences this one stands for
+     * @return the number of solutions found, times the weight
+     */
+    private int goalSolutions(int last, int runLength, int weight) {
+        // the twists over the last axis, some may be done before the search.
+        // Twisting in place leaves the run of the cube as it was at the start
+        int twists = cube.getTwists();
+        int first = twists - runLength;
+        int run = 0;
+        if (first < startTwists) {
+            first = startTwists;
+            run = cube.getRun();
+        }
+        for (int i = first; i < twists; i++) {
+            run = Cube.followingRun(size, run, path[i]);
+        }
+        cube.getState(state);
+        return (int) (goals.solutions(state, last, run) * weight);
+    }
+
+    /**
+     * Finds the number of solutions for a cube with the transposition table:
+     * the cube may have been searched before, after other twists. The
+     * arguments are the same as for solutions(int, int, boolean, int)
+     * 
+     * @param left
+     *            number of twists left to the bound
+     * @return the number of solutions found, times the weight
+     */
+    private int storedSolutions(int left, int last, int runLength,
+            boolean repeated, int weight) {
+        int result = table.lookup(cube, left, last, runLength, repeated,
+                weight);
+        if (result < 0) {
+            result = childSolutions(last, runLength, repeated, weight);
+            table.store(cube, left, last, runLength, repeated, weight, result);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the number of solutions for the children of the cube, twisting
+     * the cube in place. The arguments are the same as for solutions(int,
+     * int, boolean, int)
+     * 
+     * @return the number of solutions found, times the weight
+     */
+    private int childSolutions(int last, int runLength, boolean repeated,
+            int weight) {
+        int result = 0;
+
+        for (int move = 0; move < moves; move++) {
+            if (!Cube.canFollow(size, last, repeated, move)) {
+                continue;
+            }
+
+            // recursion step, on the cube itself
+            path[cube.getTwists()] = move;
+            cube.twistInPlace(move);
+            int childSolutions;
+            if (last >= 0 && Cube.sameAxis(size, move, last)) {
+                boolean childRepeated = move == last;
+                childSolutions = solutions(move, runLength + 1,
+                        childRepeated, Cube.followingWeight(weight,
+                                runLength + 1, childRepeated));
+            } else {
+                childSolutions = solutions(move, 1, false, weight);
+            }
+            if (childSolutions > 0) {
+                result += childSolutions;
+                if (Rubiks.PRINT_SOLUTION) {
+                    cube.print(System.err);
+                }
+            }
+            cube.untwist(move);
+        }
+
+        return result;
+    }
+
+    /**
+     * Ends the search when the thread is interrupted, checked once every
+     * INTERRUPT_CHECK cubes
+     */
+    private void checkInterrupt() {
+        if (--untilCheck == 0) {
+            untilCheck = INTERRUPT_CHECK;
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("search interrupted");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cubes looked at by this search so far
+     *
+     * @return the number of nodes searched
+     */
+    public long getNodes() {
+        return nodes;
+    }
+}
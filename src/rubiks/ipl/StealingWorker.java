@@ -0,0 +1,457 @@
+package rubiks.ipl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.ReceiveTimedOutException;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Worker of the work stealing mode (--steal). The Master only deals the jobs
+ * of every bound out to the workers and counts the solutions they report. A
+ * worker keeps its jobs in a deque, and its threads solve the jobs at the
+ * front. When the deque is empty a thread asks a random other worker for
+ * jobs, which gives away half of its deque from the back.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public class StealingWorker {
+
+	/**
+	 * Name of the receive port for steal requests
+	 */
+	static final String STEAL_PORT = "steal";
+
+	/**
+	 * Name of the receive port for the replies to steal requests
+	 */
+	static final String REPLY_PORT = "reply";
+
+	/**
+	 * Longest time in milliseconds to wait for a message before checking if
+	 * the computation is ended
+	 */
+	private static final int TIMEOUT = 1000;
+
+	/**
+	 * Longest time in milliseconds an idle thread waits before trying to steal
+	 * again
+	 */
+	private static final int MAX_BACKOFF = 64;
+
+	/**
+	 * Instance of the Rubiks class
+	 */
+	private Rubiks rubiks = null;
+
+	/**
+	 * Send port to the Master, used by the stealing thread only
+	 */
+	private SendPort workerSendPort = null;
+
+	/**
+	 * Receive port for the messages of the Master
+	 */
+	private ReceivePort workerReceivePort = null;
+
+	/**
+	 * Receive port for steal requests of other workers
+	 */
+	private ReceivePort stealReceivePort = null;
+
+	/**
+	 * Receive port for the replies to our steal requests
+	 */
+	private ReceivePort replyReceivePort = null;
+
+	/**
+	 * Send ports for steal requests, per worker. Used by the stealing thread
+	 * only
+	 */
+	private Map<IbisIdentifier, SendPort> stealSendPorts = new HashMap<IbisIdentifier, SendPort>();
+
+	/**
+	 * Send ports for replies to steal requests, per worker. Used by the thread
+	 * handling steal requests only
+	 */
+	private Map<IbisIdentifier, SendPort> replySendPorts = new HashMap<IbisIdentifier, SendPort>();
+
+	/**
+	 * The other workers
+	 */
+	private List<IbisIdentifier> peers = new ArrayList<IbisIdentifier>();
+
+	private Random random = new Random();
+
+	/**
+	 * The cube to solve, the jobs hold the twists leading from it to the cubes
+	 * to search
+	 */
+	private Cube startCube = null;
+
+	/**
+	 * Jobs to solve, guarded by this worker
+	 */
+	private ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+
+	/**
+	 * True while a thread is stealing, guarded by this worker
+	 */
+	private boolean stealing = false;
+
+	/**
+	 * True when the Master ended the computation, guarded by this worker
+	 */
+	private boolean done = false;
+
+	/**
+	 * Jobs solved per bound since the last report, guarded by this worker.
+	 * Stolen jobs can be of another bound than the jobs in the deque
+	 */
+	private Map<Integer, Report> reports = new TreeMap<Integer, Report>();
+
+	/**
+	 * Number of the last steal request sent, the replies carry it so a late
+	 * reply is not taken for the reply to a later request. Used by the
+	 * stealing thread only
+	 */
+	private int stealRequest = 0;
+
+	/**
+	 * Function that performs the entire computation of a Worker. The jobs
+	 * the Master deals out are added to the deque, until the Master informs
+	 * the Worker that the computation is ended
+	 */
+	public void workerComputation() throws Exception {
+		// the Master sends the start cube before any job
+		ReadMessage start = workerReceivePort.receive();
+		start.readByte(); // START
+		startCube = Rubiks.readStart(start);
+		start.finish();
+
+		// the Master sizes the jobs by the threads of all workers
+		WriteMessage w = workerSendPort.newMessage();
+		w.writeByte(Rubiks.THREADS);
+		w.writeInt(rubiks.threads);
+		w.finish();
+
+		Thread[] threads = new Thread[rubiks.threads];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					solveJobs();
+				}
+			};
+			threads[i].start();
+		}
+
+		Thread stealHandler = new Thread() {
+			public void run() {
+				handleSteals();
+			}
+		};
+		stealHandler.start();
+
+		boolean endLoop = false;
+		while (!endLoop) {
+			ReadMessage r = workerReceivePort.receive();
+			byte opcode = r.readByte();
+
+			if (opcode == Rubiks.JOBS) {
+				// jobs of a new bound
+				Job[] received = Rubiks.readJobs(r);
+				r.finish();
+				synchronized (this) {
+					for (Job job : received) {
+						jobs.addLast(job);
+					}
+					notifyAll();
+				}
+			} else {
+				r.finish();
+				if (opcode == Rubiks.FINALIZE_MESSAGE) {
+					endLoop = true;
+				} else {
+					System.err.println("WEIRD MESSAGE FROM MASTER");
+				}
+			}
+		}
+
+		synchronized (this) {
+			done = true;
+			notifyAll();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		stealHandler.join();
+
+		// the jobs of all bounds are stolen back and forth
+		String table = TranspositionTable.report();
+		if (table != null) {
+			System.err.println("All bounds: " + table);
+		}
+	}
+
+	/**
+	 * Run by the threads solving the jobs. Takes jobs from the front of the
+	 * deque, and steals jobs when there are none
+	 */
+	private void solveJobs() {
+		int backoff = 1;
+
+		try {
+			while (true) {
+				Job job;
+				synchronized (this) {
+					// only one thread steals at a time
+					while (!done && jobs.isEmpty() && stealing) {
+						wait();
+					}
+					if (done) {
+						return;
+					}
+					job = jobs.pollFirst();
+					if (job == null) {
+						stealing = true;
+					}
+				}
+
+				if (job != null) {
+					long start = System.nanoTime();
+					int solutions = job.solutions(startCube);
+					solved(job.bound, solutions, System.nanoTime() - start);
+					backoff = 1;
+					continue;
+				}
+
+				// out of work: tell the Master what was done, then steal
+				boolean stolen = false;
+				try {
+					report();
+					stolen = steal();
+				} catch (IOException e) {
+					if (!isDone()) {
+						e.printStackTrace(System.err);
+					}
+				} finally {
+					synchronized (this) {
+						stealing = false;
+						notifyAll();
+					}
+				}
+
+				if (stolen) {
+					backoff = 1;
+				} else {
+					synchronized (this) {
+						if (!done && jobs.isEmpty()) {
+							wait(backoff);
+						}
+					}
+					backoff = Math.min(2 * backoff, MAX_BACKOFF);
+				}
+			}
+		} catch (InterruptedException e) {
+			// ends the thread
+		}
+	}
+
+	/**
+	 * Records the solutions found for a job, until they are reported
+	 */
+	private synchronized void solved(int bound, int solutions, long nanos) {
+		Report report = reports.get(bound);
+		if (report == null) {
+			report = new Report();
+			reports.put(bound, report);
+		}
+		report.jobs++;
+		report.solutions += solutions;
+		report.nanos += nanos;
+	}
+
+	private synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Sends the number of jobs solved, the solutions found and the time the
+	 * jobs took since the last report to the Master, one report per bound.
+	 * The Master knows a bound is done when all jobs it dealt out are
+	 * reported
+	 */
+	private void report() throws IOException {
+		Map<Integer, Report> sending;
+		synchronized (this) {
+			if (reports.isEmpty()) {
+				return;
+			}
+			sending = reports;
+			reports = new TreeMap<Integer, Report>();
+		}
+
+		for (Map.Entry<Integer, Report> entry : sending.entrySet()) {
+			Report report = entry.getValue();
+			WriteMessage w = workerSendPort.newMessage();
+			w.writeByte(Rubiks.REPORT);
+			w.writeInt(entry.getKey());
+			w.writeInt(report.jobs);
+			w.writeInt(report.solutions);
+			w.writeLong(report.nanos);
+			w.finish();
+		}
+	}
+
+	/**
+	 * Asks a random other worker for jobs
+	 *
+	 * @return true if jobs were stolen
+	 */
+	private boolean steal() throws IOException {
+		if (peers.isEmpty()) {
+			return false;
+		}
+
+		IbisIdentifier victim = peers.get(random.nextInt(peers.size()));
+		stealRequest++;
+		WriteMessage w = connect(stealSendPorts, victim, STEAL_PORT)
+				.newMessage();
+		w.writeByte(Rubiks.STEAL);
+		w.writeInt(stealRequest);
+		w.finish();
+
+		// every request is answered, unless the computation ended
+		while (true) {
+			int request;
+			Job[] stolen;
+			try {
+				ReadMessage r = replyReceivePort.receive(TIMEOUT);
+				request = r.readInt();
+				r.readByte(); // JOBS
+				stolen = Rubiks.readJobs(r);
+				r.finish();
+			} catch (ReceiveTimedOutException e) {
+				if (isDone()) {
+					return false;
+				}
+				continue;
+			}
+
+			// the jobs of a late reply were taken from the other worker's
+			// deque, so they are solved here all the same
+			synchronized (this) {
+				for (Job job : stolen) {
+					jobs.addLast(job);
+				}
+				notifyAll();
+			}
+			if (request == stealRequest) {
+				return stolen.length > 0;
+			}
+		}
+	}
+
+	/**
+	 * Run by the thread handling steal requests: replies with half of the
+	 * jobs in the deque, taken from the back
+	 */
+	private void handleSteals() {
+		while (!isDone()) {
+			try {
+				ReadMessage r = stealReceivePort.receive(TIMEOUT);
+				r.readByte(); // STEAL
+				int request = r.readInt();
+				IbisIdentifier thief = r.origin().ibisIdentifier();
+				r.finish();
+
+				Job[] loot;
+				synchronized (this) {
+					loot = new Job[jobs.size() / 2];
+					for (int i = 0; i < loot.length; i++) {
+						loot[i] = jobs.pollLast();
+					}
+				}
+
+				WriteMessage w = connect(replySendPorts, thief, REPLY_PORT)
+						.newMessage();
+				w.writeInt(request);
+				Rubiks.writeJobs(w, loot);
+				w.finish();
+			} catch (ReceiveTimedOutException e) {
+				// checking if the computation is ended
+			} catch (IOException e) {
+				if (!isDone()) {
+					e.printStackTrace(System.err);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the send port connected to a port of another worker, connecting
+	 * it the first time
+	 */
+	private SendPort connect(Map<IbisIdentifier, SendPort> ports,
+			IbisIdentifier worker, String name) throws IOException {
+		SendPort port = ports.get(worker);
+		if (port == null) {
+			port = rubiks.myIbis.createSendPort(Rubiks.portWorkerToWorker);
+			port.connect(worker, name);
+			ports.put(worker, port);
+		}
+		return port;
+	}
+
+	/**
+	 * Creates and connects the ports and starts the Worker computation
+	 * @param rubiks Instance of the Rubiks class
+	 */
+	public StealingWorker(Rubiks rubiks) throws Exception {
+		this.rubiks = rubiks;
+
+		for (IbisIdentifier ibis : rubiks.ibisNodes) {
+			if (!ibis.equals(rubiks.master)
+					&& !ibis.equals(rubiks.myIbis.identifier())) {
+				peers.add(ibis);
+			}
+		}
+
+		//Connecting ports
+		stealReceivePort = rubiks.myIbis.createReceivePort(
+				Rubiks.portWorkerToWorker, STEAL_PORT);
+		stealReceivePort.enableConnections();
+		replyReceivePort = rubiks.myIbis.createReceivePort(
+				Rubiks.portWorkerToWorker, REPLY_PORT);
+		replyReceivePort.enableConnections();
+
+		workerSendPort = rubiks.myIbis
+				.createSendPort(Rubiks.portWorkerToMaster);
+		workerReceivePort = rubiks.myIbis.createReceivePort(
+				Rubiks.portMasterToWorker, "receive port");
+		workerReceivePort.enableConnections();
+		workerSendPort.connect(rubiks.master, "receive port");
+		workerComputation();
+	}
+
+	/**
+	 * Jobs of a bound solved since the last report, the solutions found and
+	 * the time in nanoseconds the jobs took
+	 */
+	private static class Report {
+		int jobs = 0;
+		int solutions = 0;
+		long nanos = 0;
+	}
+}
@@ -0,0 +1,213 @@
+package rubiks.ipl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transposition table for Search: a fixed size table of the number of
+ * solutions found below a cube, so a cube reached again by other twists is
+ * not searched again. An entry holds the whole cube, 3 bits per element, and
+ * the twists left and the twists leading to the cube as far as they decide
+ * the search below it (see Cube.canTwist()), so the counts are exact.
+ *
+ * The table is lossy: every entry has one place, and a new entry only
+ * replaces an entry with no more twists left, as those take the longest to
+ * search again. Every thread has its own table, so no locking is needed.
+ * Entries stay valid for every bound and every cube of the same size.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public class TranspositionTable {
+
+    /**
+     * Fewest twists left for a cube to be looked up. Searching a cube closer
+     * to the bound takes less time than a lookup
+     */
+    static final int MIN_LEFT = 3;
+
+    // memory per thread in bytes, 0 if no tables are used
+    private static long memory = 0;
+
+    // tables of all threads, to report on
+    private static final List<TranspositionTable> tables = new ArrayList<TranspositionTable>();
+
+    // table of the current thread
+    private static final ThreadLocal<TranspositionTable> current = new ThreadLocal<TranspositionTable>();
+
+    private final int size;
+
+    // longs per entry: the cube, the twists, and the count and its weight
+    private final int stride;
+
+    private final int entries;
+
+    private final long[] table;
+
+    // key of the cube looked up or stored last
+    private final long[] key;
+
+    // lookups and hits since the last report, and entries in use
+    private long lookups = 0;
+
+    private long hits = 0;
+
+    private long used = 0;
+
+    /**
+     * Sets the memory every thread can use for its table. Searches only use
+     * tables once this is set.
+     *
+     * @param megabytes
+     *            memory per thread in megabytes, 0 for no tables
+     */
+    public static synchronized void setMemory(int megabytes) {
+        memory = (long) megabytes << 20;
+    }
+
+    /**
+     * Returns the table of the current thread for cubes of a size, creating
+     * it the first time
+     *
+     * @param size
+     *            size of the cubes
+     * @return the table, or null if no memory is set for tables
+     */
+    public static TranspositionTable get(int size) {
+        TranspositionTable result = current.get();
+        if (result == null || result.size != size) {
+            synchronized (TranspositionTable.class) {
+                if (memory == 0) {
+                    return null;
+                }
+                tables.remove(result);
+                result = new TranspositionTable(size, memory);
+                tables.add(result);
+            }
+            current.set(result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the lookups and hits of the tables of all threads since the
+     * last report, and the memory they use. Should only be called while no
+     * thread is searching.
+     *
+     * @return a line on the tables, null if no tables are used
+     */
+    public static synchronized String report() {
+        if (tables.isEmpty()) {
+            return null;
+        }
+        long lookups = 0;
+        long hits = 0;
+        long used = 0;
+        long entries = 0;
+        long bytes = 0;
+        for (TranspositionTable table : tables) {
+            lookups += table.lookups;
+            hits += table.hits;
+            used += table.used;
+            entries += table.entries;
+            bytes += 8L * table.table.length;
+            table.lookups = 0;
+            table.hits = 0;
+        }
+        return lookups + " lookups, "
+                + (lookups == 0 ? 0 : hits * 100 / lookups) + "% hits, "
+                + used + " of " + entries + " entries used, "
+                + (bytes >> 20) + " MB in " + tables.size() + " tables";
+    }
+
+    private TranspositionTable(int size, long memory) {
+        this.size = size;
+        this.stride = Cube.stateWords(size) + 2;
+        this.entries = (int) Math.max(1, Math.min(Integer.MAX_VALUE
+                / stride, memory / (8 * stride)));
+        this.table = new long[entries * stride];
+        this.key = new long[stride];
+    }
+
+    /**
+     * Looks up the solutions below a cube
+     *
+     * @param cube
+     *            the cube
+     * @param left
+     *            twists left to the bound
+     * @param last
+     *            last twist leading to the cube, -1 if none
+     * @param runLength
+     *            number of twists over the axis of the last twist at the end
+     * @param repeated
+     *            true if the last twist was done twice in a row
+     * @param weight
+     *            number of twist sequences the cube stands for
+     * @return the number of solutions found below the cube times the weight,
+     *         -1 if not in the table
+     */
+    public int lookup(Cube cube, int left, int last, int runLength,
+            boolean repeated, int weight) {
+        lookups++;
+        int entry = setKey(cube, left, last, runLength, repeated);
+        for (int i = 0; i < stride - 1; i++) {
+            if (table[entry + i] != key[i]) {
+                return -1;
+            }
+        }
+        hits++;
+
+        // the solutions count as many times as the weight, also below
+        long stored = table[entry + stride - 1];
+        return (int) ((stored & 0xffffffffL) * weight / (stored >>> 32));
+    }
+
+    /**
+     * Stores the solutions below a cube, unless its place holds a cube with
+     * more twists left. The arguments are the same as for lookup()
+     *
+     * @param solutions
+     *            the number of solutions found below the cube, times the
+     *            weight
+     */
+    public void store(Cube cube, int left, int last, int runLength,
+            boolean repeated, int weight, int solutions) {
+        int entry = setKey(cube, left, last, runLength, repeated);
+        long twists = table[entry + stride - 2];
+        if (twists != 0) {
+            if ((twists & 0xff) > (key[stride - 2] & 0xff)) {
+                return;
+            }
+        } else {
+            used++;
+        }
+        System.arraycopy(key, 0, table, entry, stride - 1);
+        table[entry + stride - 1] = (long) weight << 32 | solutions;
+    }
+
+    /**
+     * Sets the key of a cube, and returns the place of its entry
+     */
+    private int setKey(Cube cube, int left, int last, int runLength,
+            boolean repeated) {
+        cube.getState(key);
+
+        // never 0, which marks an empty entry
+        key[stride - 2] = 1L << 40 | (repeated ? 1L << 32 : 0)
+                | (long) runLength << 24 | (long) (last + 1) << 8 | left;
+        return index();
+    }
+
+    /**
+     * Returns the place of the entry of the current key
+     */
+    private int index() {
+        long hash = 0;
+        for (int i = 0; i < stride - 1; i++) {
+            hash = (hash ^ key[i]) * 0x9e3779b97f4a7c15L;
+        }
+        hash ^= hash >>> 29;
+        return (int) ((hash >>> 1) % entries) * stride;
+    }
+}
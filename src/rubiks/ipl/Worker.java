@@ -1,5 +1,14 @@
 package rubiks.ipl;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
 import ibis.ipl.SendPort;
@@ -23,49 +32,371 @@ public class Worker {
 	private Rubiks rubiks = null;
 
 	/**
-	 * Cache of the Worker
+	 * The cube to solve, the jobs hold the twists leading from it to the cubes
+	 * to search
+	 */
+	private Cube startCube = null;
+
+	/**
+	 * Jobs received, per job id. The Master sends the ids only when the jobs
+	 * are solved again for another bound. Only used by the thread running
+	 * workerComputation()
 	 */
-	private CubeCache cache = null;
+	private Map<Integer, Job> frontier = new HashMap<Integer, Job>();
+
+	/**
+	 * Threads solving the received cubes, one per core by default
+	 */
+	private ExecutorService pool = null;
+
+	/**
+	 * Number of threads of the pool
+	 */
+	private int threads;
+
+	/**
+	 * Number of job requests the Worker keeps outstanding at the Master
+	 */
+	private int prefetch;
+
+	/**
+	 * Job requests sent and not replied yet by the Master. Only used by the
+	 * thread running workerComputation()
+	 */
+	private int requested = 0;
+
+	/**
+	 * Number of received cubes that are not solved yet, guarded by this
+	 * Worker
+	 */
+	private int unsolved = 0;
+
+	/**
+	 * Solutions found for the current bound, guarded by this Worker
+	 */
+	private int solutionsFound = 0;
+
+	/**
+	 * Cubes solved since the last message to the Master, and the time in
+	 * nanoseconds the threads took to solve them. Guarded by this Worker
+	 */
+	private int solvedJobs = 0;
+	private long solvedNanos = 0;
+
+	/**
+	 * True if there is no pause between the bounds (--overlap). The Worker
+	 * then reports the jobs it solved per bound, instead of sending a result
+	 * at the end of every bound
+	 */
+	private boolean overlapping;
+
+	/**
+	 * Jobs solved per bound since the last report, guarded by this Worker.
+	 * Only used with --overlap
+	 */
+	private Map<Integer, Report> reports = new TreeMap<Integer, Report>();
+
+	/**
+	 * Number of received cubes that are not solved yet per bound, guarded by
+	 * this Worker. Only used with --overlap
+	 */
+	private Map<Integer, Integer> unsolvedPerBound = new TreeMap<Integer, Integer>();
+
+	/**
+	 * True when the Master ended the computation, guarded by this Worker
+	 */
+	private boolean done = false;
+
+	/**
+	 * Bound of the jobs received last. Only used by the thread running
+	 * workerComputation()
+	 */
+	private int bound = 0;
 
 	/**
 	 * Function that performs the entire computation of a Worker, it's composed
 	 * of a loop that ends when the master informs the Worker that the
 	 * computation is ended. When the Master informs the Worker that the all the
 	 * cubes for the current bound are sent, the Worker replies with the number
-	 * of solutions found for the current bound
+	 * of solutions found for the current bound. The cubes are solved by the
+	 * threads of the pool, and new jobs are asked for while the threads are
+	 * still solving the last ones. With --prefetch the Worker keeps more
+	 * requests outstanding, so the next jobs are usually received already.
+	 * With --overlap there are no pause messages, the Master counts the
+	 * solutions from the reports of the jobs solved
 	 */
 	public void workerComputation() throws Exception {
 		boolean endLoop = false;
-		int solutionsFound = 0;
 
-		while (!endLoop) {
+		// the Master sends the start cube before any job
+		ReadMessage start = workerReceivePort.receive();
+		start.readByte(); // START
+		startCube = Rubiks.readStart(start);
+		start.finish();
 
-			// asking for a new job
+		// the Master sizes the jobs by the threads of all workers
+		synchronized (workerSendPort) {
 			WriteMessage w = workerSendPort.newMessage();
-			w.writeString(Rubiks.READY_FOR_NEW_JOBS);
+			w.writeByte(Rubiks.THREADS);
+			w.writeInt(threads);
 			w.finish();
+		}
+
+		// asking for the first jobs
+		askForJobs(prefetch);
+
+		while (!endLoop) {
 
 			// receiving the new job or a pause message
 			ReadMessage r = workerReceivePort.receive();
-			Object o = r.readObject();
-			r.finish();
+			byte opcode = r.readByte();
 			
-			try {
-				//trying to see if the message contains some jobs
-				Cube[] cubes = (Cube[]) o;
-				
-				//Computing the received cubes
-				for (Cube cube : cubes) {
-					solutionsFound += Rubiks.solutions(cube, cache);
+			if (opcode == Rubiks.JOBS || opcode == Rubiks.RERUN) {
+				Job[] jobs;
+				if (opcode == Rubiks.JOBS) {
+					jobs = Rubiks.readJobs(r);
+					for (Job job : jobs) {
+						frontier.put(job.id, job);
+					}
+				} else {
+					jobs = Rubiks.readRerun(r, frontier);
+				}
+				r.finish();
+				if (jobs.length > 0) {
+					bound = jobs[0].bound;
 				}
+				requested--;
 				
-			} catch (ClassCastException exc) {
+				//Computing the received jobs in the pool
+				solve(jobs);
+
+				//asking for new jobs as soon as a thread could run out of work
+				waitForIdleThread();
+				sendReports();
+				askForJobs(prefetch);
+				
+			} else if (overlapping) {
+				r.finish();
+				if (opcode != Rubiks.FINALIZE_MESSAGE) {
+					System.err.println("WEIRD MESSAGE FROM MASTER");
+				}
+				endLoop = true;
+				synchronized (this) {
+					// the jobs of the next bound still running are discarded
+					done = true;
+				}
+				pool.shutdownNow();
+				// the last message to the Master
+				synchronized (workerSendPort) {
+					WriteMessage w = workerSendPort.newMessage();
+					w.writeByte(Rubiks.FINALIZE_MESSAGE);
+					w.finish();
+				}
+			} else {
+				r.finish();
+				if (opcode == Rubiks.PAUSE_WORKER_COMPUTATION) {
+					requested--;
+				}
 				//Pause message received from the Master
 				//If the function returns true the computation will terminate
-				endLoop = handleControlMessages((String) o, solutionsFound);
-				solutionsFound = 0;
+				endLoop = handleControlMessages(opcode, waitForSolutions());
+				if (!endLoop) {
+					askForJobs(prefetch);
+				}
 			}
 		}
+
+		pool.shutdown();
+		if (overlapping) {
+			// the transposition tables of the bounds solved together, once
+			// the interrupted searches stopped using them
+			if (pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				String table = TranspositionTable.report();
+				if (table != null) {
+					System.err.println("All bounds: " + table);
+				}
+			} else {
+				System.err.println("Searches still running after the end");
+			}
+		}
+	}
+
+	/**
+	 * Asks the Master for new jobs, until the given number of requests is
+	 * outstanding. The Master replies to every request with jobs or with a
+	 * pause message. The requests tell the Master how long the cubes took to
+	 * solve, to size the next messages
+	 * 
+	 * @param outstanding
+	 *            number of requests to keep outstanding
+	 */
+	private void askForJobs(int outstanding) throws Exception {
+		while (requested < outstanding) {
+			synchronized (workerSendPort) {
+				WriteMessage w = workerSendPort.newMessage();
+				w.writeByte(Rubiks.READY_FOR_NEW_JOBS);
+				writeJobCosts(w);
+				w.finish();
+			}
+			requested++;
+		}
+	}
+
+	/**
+	 * Sends the reports of the jobs solved since the last report, one per
+	 * bound. Only used with --overlap, called by the thread running
+	 * workerComputation() before asking for jobs, and by the thread of the
+	 * pool that solved the last job received
+	 */
+	private void sendReports() throws IOException {
+		synchronized (workerSendPort) {
+			Map<Integer, Report> sending;
+			synchronized (this) {
+				if (done || reports.isEmpty()) {
+					return;
+				}
+				sending = reports;
+				reports = new TreeMap<Integer, Report>();
+			}
+
+			for (Map.Entry<Integer, Report> entry : sending.entrySet()) {
+				Report report = entry.getValue();
+				WriteMessage w = workerSendPort.newMessage();
+				w.writeByte(Rubiks.REPORT);
+				w.writeInt(entry.getKey());
+				w.writeInt(report.jobs);
+				w.writeInt(report.solutions);
+				w.writeLong(report.nanos);
+				w.finish();
+			}
+		}
+	}
+
+	/**
+	 * Hands the jobs to the threads of the pool
+	 * 
+	 * @param jobs
+	 *            jobs to solve
+	 */
+	private void solve(Job[] jobs) {
+		synchronized (this) {
+			unsolved += jobs.length;
+			if (overlapping && jobs.length > 0) {
+				// the jobs of a message have the same bound
+				Integer left = unsolvedPerBound.get(jobs[0].bound);
+				unsolvedPerBound.put(jobs[0].bound, jobs.length
+						+ (left == null ? 0 : left));
+			}
+		}
+
+		for (final Job job : jobs) {
+			pool.execute(new Runnable() {
+				public void run() {
+					// the search only uses the cube it is given
+					long start = System.nanoTime();
+					int solutions;
+					try {
+						solutions = job.solutions(startCube);
+					} catch (CancellationException e) {
+						// discarded by shutdownNow() at the end
+						return;
+					}
+					if (solved(job.bound, solutions, System.nanoTime()
+							- start)) {
+						// the Master may be waiting for the last jobs of the
+						// bound, without jobs to reply to requests with
+						try {
+							sendReports();
+						} catch (IOException e) {
+							if (!isDone()) {
+								e.printStackTrace(System.err);
+							}
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called by a thread of the pool when it solved a cube
+	 * 
+	 * @param bound
+	 *            bound the cube was solved to
+	 * @param solutions
+	 *            solutions found for the cube
+	 * @param nanos
+	 *            time it took to solve the cube
+	 * @return true if the jobs solved should be reported now, as no cubes of
+	 *         the bound are left to solve (only with --overlap)
+	 */
+	private synchronized boolean solved(int bound, int solutions, long nanos) {
+		if (overlapping) {
+			Report report = reports.get(bound);
+			if (report == null) {
+				report = new Report();
+				reports.put(bound, report);
+			}
+			report.jobs++;
+			report.solutions += solutions;
+			report.nanos += nanos;
+
+			int left = unsolvedPerBound.get(bound) - 1;
+			if (left == 0) {
+				unsolvedPerBound.remove(bound);
+			} else {
+				unsolvedPerBound.put(bound, left);
+			}
+			unsolved--;
+			notifyAll();
+			return left == 0;
+		} else {
+			solutionsFound += solutions;
+			solvedJobs++;
+			solvedNanos += nanos;
+		}
+		unsolved--;
+		notifyAll();
+		return false;
+	}
+
+	private synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Writes the number of cubes solved since the last message to the Master,
+	 * and the time they took
+	 */
+	private synchronized void writeJobCosts(WriteMessage w) throws Exception {
+		w.writeInt(solvedJobs);
+		w.writeLong(solvedNanos);
+		solvedJobs = 0;
+		solvedNanos = 0;
+	}
+
+	/**
+	 * Waits until there are no more cubes left than threads, so the next jobs
+	 * arrive before a thread runs out of work
+	 */
+	private synchronized void waitForIdleThread() throws InterruptedException {
+		while (unsolved > threads) {
+			wait();
+		}
+	}
+
+	/**
+	 * Waits until all received cubes are solved
+	 * 
+	 * @return the solutions found for the current bound
+	 */
+	private synchronized int waitForSolutions() throws InterruptedException {
+		while (unsolved > 0) {
+			wait();
+		}
+		int result = solutionsFound;
+		solutionsFound = 0;
+		return result;
 	}
 
 	/**
@@ -76,22 +407,28 @@ public class Worker {
 	 * @param solutionsFound Number of solutions found for the current bound
 	 * @return True if the worker should end the computation, False otherwise
 	 */
-	private boolean handleControlMessages(String message, int solutionsFound)
+	private boolean handleControlMessages(byte message, int solutionsFound)
 			throws Exception {
 		boolean end = false;
 		//checking that message received is the one expected
-		if (message.equals(Rubiks.PAUSE_WORKER_COMPUTATION)) {
+		if (message == Rubiks.PAUSE_WORKER_COMPUTATION) {
 			
 			sendResultToMaster(solutionsFound);
+
+			// the threads of the pool are done with the bound
+			String table = TranspositionTable.report();
+			if (table != null) {
+				System.err.println("Bound " + bound + ": " + table);
+			}
 			
 			//Message to stop or to continue
 			ReadMessage rm = workerReceivePort.receive(); 
-			String msg = rm.readString();
+			byte msg = rm.readByte();
 			rm.finish();
 			
-			if (msg.equals(Rubiks.FINALIZE_MESSAGE)) {
+			if (msg == Rubiks.FINALIZE_MESSAGE) {
 				end = true;
-			} else if (!msg.equals(Rubiks.CONTINUE_COMPUTATION)) { //Checking the expected message
+			} else if (msg != Rubiks.CONTINUE_COMPUTATION) { //Checking the expected message
 				System.err.println("WEIRD MESSAGE FROM MASTER1");
 			}
 		} else {
@@ -105,18 +442,22 @@ public class Worker {
 	 */
 	private void sendResultToMaster(int value) throws Exception {
 		WriteMessage w = workerSendPort.newMessage();
-		w.writeString(Integer.toString(value));
+		w.writeByte(Rubiks.RESULT);
+		w.writeInt(value);
+		writeJobCosts(w);
 		w.finish();
 	}
 	
 	/**
 	 * Creates and connects the ports and starts the Worker computation
-	 * @param cubeSize Size of the cube, needed for the cache
 	 * @param rubiks Instance of the Rubiks class
 	 */
-	public Worker(int cubeSize, Rubiks rubiks) throws Exception {
-		cache = new CubeCache(cubeSize);
+	public Worker(Rubiks rubiks) throws Exception {
 		this.rubiks = rubiks;
+		this.threads = rubiks.threads;
+		this.prefetch = rubiks.prefetch;
+		this.overlapping = rubiks.overlapping;
+		pool = Executors.newFixedThreadPool(threads);
 		
 		//Connecting ports
 		workerSendPort = rubiks.myIbis
@@ -130,4 +471,14 @@ public class Worker {
 		
 		
 	}
+
+	/**
+	 * Jobs of a bound solved since the last report, the solutions found and
+	 * the time in nanoseconds the jobs took
+	 */
+	private static class Report {
+		int jobs = 0;
+		int solutions = 0;
+		long nanos = 0;
+	}
 }
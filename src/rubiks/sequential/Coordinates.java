@@ -0,0 +1,478 @@
+package rubiks.sequential;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coordinates of cubes of size 2 and 3: the state of a cube as a handful of
+ * small numbers, each twisted with a single lookup in a move table. The
+ * coordinates describe the pieces (see Cube.setCubies()) of one kind: the
+ * orientations of all corners or all edges, and the arrangement of the
+ * corners, of the centers, and of the edges in three slices of four. The
+ * corner no twist moves is left out. Together the coordinates give the whole
+ * cube, so a cube is solved when every coordinate has its solved value.
+ *
+ * Per coordinate a table of the fewest twists from every value to the solved
+ * value gives a lower bound for the twists needed to solve a cube. The
+ * tables of the 3x3 cube take about 600 kilobytes, and are shared by all
+ * threads.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public class Coordinates {
+
+    // most values of a coordinate, as the move tables hold chars
+    private static final int MAX_VALUES = 1 << 16;
+
+    // searches only use coordinates once this is set
+    private static boolean enabled = false;
+
+    // coordinates per size of cube
+    private static final Map<Integer, Coordinates> loaded = new HashMap<Integer, Coordinates>();
+
+    private final Cube.Cubies layout;
+
+    private final int moves;
+
+    // how every coordinate is found from the pieces
+    private final Coordinate[] coordinates;
+
+    // per coordinate its move table: the value after a twist at value *
+    // moves + move. Coordinates of the same form share a table
+    private final char[][] tables;
+
+    // per coordinate the fewest twists from every value to the solved value
+    private final byte[][] distances;
+
+    // per coordinate the value of the solved cube
+    private final int[] solved;
+
+    /**
+     * Sets if searches use coordinates
+     *
+     * @param enabled
+     *            true to use coordinates
+     */
+    public static synchronized void setEnabled(boolean enabled) {
+        Coordinates.enabled = enabled;
+    }
+
+    /**
+     * Returns the coordinates for a cube, generating the tables the first
+     * time they are needed.
+     *
+     * @param cube
+     *            the cube to search
+     * @return the coordinates, or null if they are not used, the size of the
+     *         cube is not supported, or the cube does not have the pieces of
+     *         the solved cube with the fixed corner in place
+     */
+    public static synchronized Coordinates get(Cube cube) {
+        int size = cube.getSize();
+        if (!enabled || Cube.cubieLayout(size) == null) {
+            return null;
+        }
+
+        Coordinates result = loaded.get(size);
+        if (result == null) {
+            long start = System.currentTimeMillis();
+            result = new Coordinates(size);
+            long bytes = 0;
+            for (int i = 0; i < result.coordinates.length; i++) {
+                if (i == 0 || result.tables[i] != result.tables[i - 1]) {
+                    bytes += 2L * result.tables[i].length;
+                }
+                bytes += result.distances[i].length;
+            }
+            System.err.println("Generated " + result.coordinates.length
+                    + " coordinates: " + (bytes >> 10) + " KB, in "
+                    + (System.currentTimeMillis() - start) + " milliseconds");
+            loaded.put(size, result);
+        }
+
+        if (contents(result.layout, cube) == null) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Returns if a cube can be searched on coordinates when they are used.
+     * Cubes of the sizes without coordinates are searched without them, but
+     * a cube of the other sizes needs the pieces of the solved cube, which
+     * only a cube loaded from a file may lack (see contents()).
+     *
+     * @param cube
+     *            the cube to search
+     * @return false if the coordinates are used but do not support the cube
+     */
+    public static synchronized boolean supports(Cube cube) {
+        Cube.Cubies layout = Cube.cubieLayout(cube.getSize());
+        return !enabled || layout == null || contents(layout, cube) != null;
+    }
+
+    private Coordinates(int size) {
+        layout = Cube.cubieLayout(size);
+        moves = Cube.moves(size);
+
+        // the positions of the pieces twists move, per number of elements
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        for (int elements = 3; elements >= 1; elements--) {
+            int count = 0;
+            int[] slots = new int[layout.positions()];
+            for (int position = 0; position < layout.positions(); position++) {
+                if (layout.elements(position) == elements
+                        && layout.moves(position)) {
+                    slots[count++] = position;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            slots = java.util.Arrays.copyOf(slots, count);
+
+            if (elements > 1) {
+                coordinates.add(new Coordinate(slots, null, elements));
+            }
+
+            // as many pieces per arrangement as the move tables allow
+            int group = 1;
+            long values = count;
+            while (group < count && values * (count - group) <= MAX_VALUES) {
+                values *= count - group;
+                group++;
+            }
+            for (int first = 0; first < count; first += group) {
+                int[] pieces = java.util.Arrays.copyOfRange(slots, first,
+                        Math.min(count, first + group));
+                coordinates.add(new Coordinate(slots, pieces, 1));
+            }
+        }
+        this.coordinates = coordinates.toArray(new Coordinate[coordinates
+                .size()]);
+
+        tables = new char[this.coordinates.length][];
+        distances = new byte[this.coordinates.length][];
+        solved = new int[this.coordinates.length];
+        for (int i = 0; i < tables.length; i++) {
+            Coordinate coordinate = this.coordinates[i];
+            solved[i] = coordinate.value(layout.solved);
+            if (i > 0 && coordinate.sameForm(this.coordinates[i - 1])) {
+                tables[i] = tables[i - 1];
+            } else {
+                tables[i] = moveTable(coordinate);
+            }
+            distances[i] = distances(tables[i], solved[i]);
+        }
+    }
+
+    /**
+     * Returns the number of coordinates of a cube
+     *
+     * @return the length of the arrays of coordinates
+     */
+    public int count() {
+        return coordinates.length;
+    }
+
+    /**
+     * Writes the coordinates of a cube
+     *
+     * @param cube
+     *            the cube, of the size of these coordinates
+     * @param target
+     *            array of count() ints
+     */
+    public void getState(Cube cube, int[] target) {
+        byte[] contents = contents(layout, cube);
+        for (int i = 0; i < coordinates.length; i++) {
+            target[i] = coordinates[i].value(contents);
+        }
+    }
+
+    /**
+     * Returns if the coordinates are those of the solved cube
+     *
+     * @param state
+     *            the coordinates of a cube
+     * @return true if solved
+     */
+    public boolean isSolved(int[] state) {
+        for (int i = 0; i < state.length; i++) {
+            if (state[i] != solved[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns if a twist would solve a cube, without writing out the
+     * coordinates after the twist
+     *
+     * @param state
+     *            the coordinates of a cube
+     * @param move
+     *            index of the twist
+     * @return true if the twist solves the cube
+     */
+    public boolean isSolvedAfter(int[] state, int move) {
+        for (int i = 0; i < state.length; i++) {
+            if (tables[i][state[i] * moves + move] != solved[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Twists a cube
+     *
+     * @param state
+     *            the coordinates of a cube, which are not changed
+     * @param move
+     *            index of the twist
+     * @param target
+     *            the coordinates after the twist
+     */
+    public void twist(int[] state, int move, int[] target) {
+        for (int i = 0; i < state.length; i++) {
+            target[i] = tables[i][state[i] * moves + move];
+        }
+    }
+
+    /**
+     * Returns a lower bound for the number of twists needed to solve a cube:
+     * the most twists any coordinate needs to get to its solved value
+     *
+     * @param state
+     *            the coordinates of a cube
+     * @return a number of twists that is never more than needed
+     */
+    public int lowerBound(int[] state) {
+        int result = 0;
+        for (int i = 0; i < state.length; i++) {
+            result = Math.max(result, distances[i][state[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the pieces of a cube, or null if the cube does not have the
+     * pieces of the solved cube or the positions no twist moves do not hold
+     * their solved piece
+     */
+    private static byte[] contents(Cube.Cubies layout, Cube cube) {
+        byte[] colors = new byte[Cube.SIDES * cube.getSize() * cube.getSize()];
+        cube.getColors(colors, 0);
+        byte[] result = layout.fromColors(colors);
+        if (result == null) {
+            return null;
+        }
+        for (int position = 0; position < result.length; position++) {
+            if (!layout.moves(position)
+                    && result[position] != layout.solved[position]) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the move table of a coordinate, by twisting pieces with every
+     * value of the coordinate
+     */
+    private char[] moveTable(Coordinate coordinate) {
+        char[] result = new char[coordinate.values * moves];
+        byte[] contents = new byte[layout.positions()];
+        byte[] twisted = new byte[layout.positions()];
+        for (int value = 0; value < coordinate.values; value++) {
+            coordinate.setContents(value, contents);
+            for (int move = 0; move < moves; move++) {
+                layout.twist(move, contents, twisted);
+                result[value * moves + move] = (char) coordinate
+                        .value(twisted);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the fewest twists from every value of a coordinate to its
+     * solved value, with a breadth first search over the move table
+     */
+    private byte[] distances(char[] table, int solved) {
+        byte[] result = new byte[table.length / moves];
+        java.util.Arrays.fill(result, (byte) -1);
+        int[] queue = new int[result.length];
+        int head = 0;
+        int tail = 0;
+        result[solved] = 0;
+        queue[tail++] = solved;
+        while (head < tail) {
+            int value = queue[head++];
+            for (int move = 0; move < moves; move++) {
+                int next = table[value * moves + move];
+                if (result[next] < 0) {
+                    result[next] = (byte) (result[value] + 1);
+                    queue[tail++] = next;
+                }
+            }
+        }
+
+        // values no twists lead to are never reached by a search either
+        for (int value = 0; value < result.length; value++) {
+            if (result[value] < 0) {
+                result[value] = 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A coordinate: either the orientations of the pieces of one kind, or
+     * where a group of the pieces of one kind are, in the positions of that
+     * kind that twists move
+     */
+    private final class Coordinate {
+
+        // positions of the kind of pieces, pieces are numbered the same
+        final int[] slots;
+
+        // pieces of an arrangement, null for orientations
+        final int[] pieces;
+
+        // number of orientations of the pieces
+        final int orientations;
+
+        // number of values
+        final int values;
+
+        // per piece its index in pieces, or -1
+        final int[] tracked;
+
+        Coordinate(int[] slots, int[] pieces, int orientations) {
+            this.slots = slots;
+            this.pieces = pieces;
+            this.orientations = orientations;
+
+            long values = 1;
+            if (pieces == null) {
+                for (int i = 0; i < slots.length; i++) {
+                    values *= orientations;
+                }
+            } else {
+                for (int i = 0; i < pieces.length; i++) {
+                    values *= slots.length - i;
+                }
+            }
+            if (values > MAX_VALUES) {
+                throw new Error("coordinate with too many values");
+            }
+            this.values = (int) values;
+
+            tracked = new int[layout.positions()];
+            java.util.Arrays.fill(tracked, -1);
+            if (pieces != null) {
+                for (int i = 0; i < pieces.length; i++) {
+                    tracked[pieces[i]] = i;
+                }
+            }
+        }
+
+        /**
+         * Returns if the coordinate has the same form as another one, and so
+         * the same move table
+         */
+        boolean sameForm(Coordinate other) {
+            return slots == other.slots && orientations == other.orientations
+                    && (pieces == null) == (other.pieces == null)
+                    && (pieces == null || pieces.length == other.pieces.length);
+        }
+
+        /**
+         * Returns the value of the coordinate for the pieces of a cube
+         */
+        int value(byte[] contents) {
+            int result = 0;
+            if (pieces == null) {
+                for (int i = slots.length - 1; i >= 0; i--) {
+                    result = result * orientations
+                            + layout.orientation(contents[slots[i]]);
+                }
+                return result;
+            }
+
+            // the slot of every piece, ranked among the slots not taken by
+            // the pieces before it
+            int[] where = new int[pieces.length];
+            for (int i = 0; i < slots.length; i++) {
+                int piece = tracked[layout.piece(slots[i], contents[slots[i]])];
+                if (piece >= 0) {
+                    where[piece] = i;
+                }
+            }
+            for (int i = 0; i < pieces.length; i++) {
+                int rank = where[i];
+                for (int j = 0; j < i; j++) {
+                    if (where[j] < where[i]) {
+                        rank--;
+                    }
+                }
+                result = result * (slots.length - i) + rank;
+            }
+            return result;
+        }
+
+        /**
+         * Sets the pieces of a cube to a value of the coordinate. Pieces the
+         * coordinate does not describe are set to some valid content.
+         */
+        void setContents(int value, byte[] contents) {
+            System.arraycopy(layout.solved, 0, contents, 0, contents.length);
+            if (pieces == null) {
+                for (int i = 0; i < slots.length; i++) {
+                    contents[slots[i]] = layout.content(slots[i], value
+                            % orientations);
+                    value /= orientations;
+                }
+                return;
+            }
+
+            int[] rank = new int[pieces.length];
+            for (int i = pieces.length - 1; i >= 0; i--) {
+                rank[i] = value % (slots.length - i);
+                value /= slots.length - i;
+            }
+
+            boolean[] taken = new boolean[slots.length];
+            for (int i = 0; i < pieces.length; i++) {
+                int slot = 0;
+                while (taken[slot] || rank[i] > 0) {
+                    if (!taken[slot]) {
+                        rank[i]--;
+                    }
+                    slot++;
+                }
+                taken[slot] = true;
+                contents[slots[slot]] = layout.content(pieces[i], 0);
+            }
+
+            // the other pieces in the slots left
+            int slot = 0;
+            for (int piece : slots) {
+                if (tracked[piece] >= 0) {
+                    continue;
+                }
+                while (taken[slot]) {
+                    slot++;
+                }
+                taken[slot] = true;
+                contents[slots[slot]] = layout.content(piece, 0);
+            }
+        }
+    }
+}
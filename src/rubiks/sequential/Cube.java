@@ -3,8 +3,18 @@ package rubiks.sequential;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -17,6 +27,21 @@ public class Cube implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Serialized form of a cube. The data is still written as an array of
+     * sides, so streams written by older versions stay readable.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("size", Integer.TYPE),
+            new ObjectStreamField("data", byte[][].class),
+            new ObjectStreamField("twists", Integer.TYPE),
+            new ObjectStreamField("bound", Integer.TYPE),
+            new ObjectStreamField("lastTwist", Integer.TYPE),
+            new ObjectStreamField("runLength", Integer.TYPE),
+            new ObjectStreamField("repeated", Boolean.TYPE),
+            new ObjectStreamField("weight", Integer.TYPE),
+            new ObjectStreamField("run", Integer.TYPE) };
+
     /**
      * Enum representing axes
      */
@@ -59,19 +84,95 @@ public class Cube implements Serializable {
     //Sides and colors have the same constant cardinality = 6 
     
     /*
-     * content of the cube. Data format is an array of sides, with all the
-     * elements of each side as an array of bytes.
+     * content of the cube. Data format is a single array with the elements of
+     * all the sides one after the other, so element e of side s is found at
+     * position s * size * size + e (see facelet()).
      * 
      * expanded view of cube (with starting colors, top = white):
      * 
      * W BOGR Y
      */
-    private final byte[][] data; // first dimension = SIDES - second dimension = size * size
+    private byte[] data; // SIDES * size * size elements, null if packed
+
+    /*
+     * packed content of the cube, only used in packed mode (see setPacked()).
+     * Every element takes 3 bits, and the elements of a side are never split
+     * over two longs, so a side can be checked with a single mask compare.
+     */
+    private long[] packed;
+
+    /*
+     * content of the cube as pieces, only used in cubie mode (see
+     * setCubies()): per position of a corner, edge or center, the piece at
+     * that position and how it is turned (see Cubies).
+     */
+    private byte[] cubies;
+
+    /**
+     * Largest cube size supported by the packed mode (a side must fit in a
+     * long)
+     */
+    public static final int MAX_PACKED_SIZE = 4;
+
+    /**
+     * Largest cube size supported by the cubie mode (larger cubes have pieces
+     * of the same colors)
+     */
+    public static final int MAX_CUBIE_SIZE = 3;
+
+    // elements per long written by getState()
+    private static final int STATE_ELEMENTS = 21;
+
+    // positions of pieces per long written by getState(), 7 bits each
+    private static final int STATE_CUBIES = 9;
+
+    // largest side lowerBound() can count the colors of
+    private static final int MAX_COUNTED_ELEMENTS = 1023;
+
+    // cubes created from now on are stored packed
+    private static boolean packedMode = false;
+
+    // generate kernels for the twist tables created from now on
+    private static boolean kernelMode = false;
+
+    // cubes created from now on are stored as pieces
+    private static boolean cubieMode = false;
+
+    // twist tables of every cube size used so far
+    private static final Map<Integer, Tables> sizeTables = new HashMap<Integer, Tables>();
+
+    // twist tables for the size of this cube, shared by all cubes of that size
+    private Tables tables;
+
+    // buffer used to twist packed cubes in place (see twistInPlace())
+    private long[] packedScratch;
+
+    // colors of all elements of a cube not stored unpacked (see lowerBound())
+    private byte[] colorScratch;
 
     private int twists; // number of twists this cube is a result of
 
     private int bound; // bound, useful for limiting the search depth
 
+    /*
+     * twists leading to this cube, as far as a search needs to know them to
+     * skip twist sequences that are the same as others (see canTwist()):
+     * the last twist (-1 if none), the number of twists over the same axis
+     * at the end, if the last twist was done twice in a row, and the number
+     * of twist sequences leading to this cube that are skipped in favor of
+     * this one, plus one. The twists over the same axis at the end are also
+     * kept as a set (see getRun()).
+     */
+    private int lastTwist = -1;
+
+    private int runLength = 0;
+
+    private boolean repeated = false;
+
+    private int weight = 1;
+
+    private int run = 0;
+
     /**
      * Creates a "solved" cube of a given size
      * 
@@ -79,10 +180,20 @@ public class Cube implements Serializable {
      *            size of the cube (standard rubik's cube is 3x3x3).
      */
     public Cube(int size) {
+        this(size, false);
+        tables = tables(size);
+        compact();
+    }
+
+    /**
+     * Creates a "solved" cube of a given size, either packed or not. Does not
+     * look up the twist tables, as it is also used to create them.
+     */
+    private Cube(int size, boolean packed) {
         this.size = size;
 
-        // init data arrays
-        data = new byte[SIDES][size * size];
+        // init data array
+        data = new byte[SIDES * size * size];
 
         twists = 0;
         bound = 0;
@@ -90,9 +201,13 @@ public class Cube implements Serializable {
         // init state. side 0 should be white, side 1 is yellow, etc.
         for (byte side = 0; side < SIDES; side++) { //iterates all the sides
             for (int element = 0; element < size * size; element++) { // iterates all the elements
-                data[side][element] = side; //variable side used also to assign the color
+                data[facelet(side, element)] = side; //variable side used also to assign the color
             }
         }
+
+        if (packed) {
+            pack();
+        }
     }
 
     /**
@@ -107,8 +222,9 @@ public class Cube implements Serializable {
      *            seed will make the cube generator deterministic.
      */
     public Cube(int size, int twists, long seed) {
-        this(size); //calling the constructor with one parameter
+        this(size, false); //calling the constructor with one parameter
         			//now we have a ordered cube
+        tables = tables(size);
         Random random = new Random(seed);
 
         // do some random twists
@@ -138,6 +254,7 @@ public class Cube implements Serializable {
         // just in case
         checkIfConsistent();
 
+        compact();
     }
 
     /**
@@ -150,15 +267,20 @@ public class Cube implements Serializable {
         this.size = original.size;
         this.twists = original.twists;
         this.bound = original.bound;
-
-        // init data arrays
-        data = new byte[SIDES][size * size];
+        this.lastTwist = original.lastTwist;
+        this.runLength = original.runLength;
+        this.repeated = original.repeated;
+        this.weight = original.weight;
+        this.run = original.run;
+        this.tables = original.tables;
 
         // init state.
-        for (byte i = 0; i < SIDES; i++) {
-            for (int j = 0; j < size * size; j++) {
-                data[i][j] = original.data[i][j];
-            }
+        if (original.cubies != null) {
+            cubies = original.cubies.clone();
+        } else if (original.packed != null) {
+            packed = original.packed.clone();
+        } else {
+            data = original.data.clone();
         }
 
     }
@@ -182,9 +304,9 @@ public class Cube implements Serializable {
                         "expected size at first line of file, got: "
                                 + sizeString);
             }
-
-            // init data arrays
-            data = new byte[SIDES][size * size];
+            // init data array
+            data = new byte[SIDES * size * size];
+            tables = tables(size);
 
             for (int i = 0; i < SIDES; i++) { //iterating the sides
                 for (int x = 0; x < size; x++) { //iterating the rows
@@ -199,7 +321,7 @@ public class Cube implements Serializable {
                         byte color = parseElement(line.charAt(y));
                         int elementIndex = element(x, y); //element index for the second dimension
                         								  //side relative
-                        data[i][elementIndex] = color;
+                        data[facelet(i, elementIndex)] = color;
                     }
 
                 }
@@ -209,6 +331,93 @@ public class Cube implements Serializable {
                 reader.close();
             }
         }
+
+        // a cube the mode set does not support is kept as colors, for
+        // unsupportedMode() to report
+        if (unsupportedMode(size) == null
+                && (!cubieMode || tables.cubies.fromColors(data) != null)) {
+            compact();
+        }
+    }
+
+    /**
+     * Sets if cubes created from now on are stored packed, with 3 bits per
+     * element in an array of longs, instead of one byte per element. Only
+     * supported up to MAX_PACKED_SIZE.
+     * 
+     * @param packed
+     *            true to create packed cubes
+     */
+    public static void setPacked(boolean packed) {
+        packedMode = packed;
+    }
+
+    /**
+     * Returns why cubes of a size cannot be stored in the mode set (see
+     * setCubies() and setPacked()), to report bad options before any cube is
+     * created
+     * 
+     * @param size
+     *            size of the cubes
+     * @return the reason, or null if the mode supports the size
+     */
+    public static String unsupportedMode(int size) {
+        if (cubieMode) {
+            if (size < 2 || size > MAX_CUBIE_SIZE) {
+                return "cubies are supported from size 2 up to size "
+                        + MAX_CUBIE_SIZE;
+            }
+        } else if (packedMode && size > MAX_PACKED_SIZE) {
+            return "packed cubes are supported up to size " + MAX_PACKED_SIZE;
+        }
+        return null;
+    }
+
+    /**
+     * Returns why this cube cannot be stored in the mode set or searched on
+     * coordinates (see Coordinates.supports()). Only a cube loaded from a
+     * file can be unsupported once it exists, as it may have any size and
+     * any colors.
+     * 
+     * @return the reason, or null if the cube is supported
+     */
+    public String unsupportedMode() {
+        String result = unsupportedMode(size);
+        if (result == null && cubieMode && cubies == null) {
+            result = "only cubes with the standard colors can be stored as cubies";
+        }
+        if (result == null && !Coordinates.supports(this)) {
+            result = "only cubes with the standard colors can be searched on coordinates";
+        }
+        return result;
+    }
+
+    /**
+     * Sets if unpacked cubes are twisted and checked with code generated for
+     * their size (see KernelGenerator), instead of loops over the twist
+     * tables. Only supported up to KernelGenerator.MAX_SIZE, and only for the
+     * sizes no cube was created for yet.
+     * 
+     * @param kernels
+     *            true to generate kernels
+     */
+    public static void setKernels(boolean kernels) {
+        kernelMode = kernels;
+    }
+
+    /**
+     * Sets if cubes created from now on are stored as pieces: the position
+     * and the orientation of every corner, edge and center, instead of the
+     * colors of all elements. A twist then only moves the pieces it turns.
+     * Takes precedence over the packed mode, and is only supported from
+     * size 2 up to MAX_CUBIE_SIZE, for cubes with the standard colors, and
+     * only for the sizes no cube was created for yet.
+     * 
+     * @param cubies
+     *            true to store cubes as pieces
+     */
+    public static void setCubies(boolean cubies) {
+        cubieMode = cubies;
     }
 
     /**
@@ -221,11 +430,37 @@ public class Cube implements Serializable {
         target.size = size;
         target.twists = twists;
         target.bound = bound;
-
-        // init state.
-        for (byte i = 0; i < SIDES; i++) { 
-            System.arraycopy(data[i], 0, target.data[i], 0, data[i].length); //one dimensional copy
+        target.lastTwist = lastTwist;
+        target.runLength = runLength;
+        target.repeated = repeated;
+        target.weight = weight;
+        target.run = run;
+        target.tables = tables;
+
+        // init state. Cubes in a cache all have the same size, so the target
+        // array can be reused
+        if (cubies != null) {
+            if (target.cubies == null || target.cubies.length != cubies.length) {
+                target.cubies = new byte[cubies.length];
+                target.data = null;
+                target.packed = null;
+            }
+            System.arraycopy(cubies, 0, target.cubies, 0, cubies.length);
+            return;
+        }
+        if (packed != null) {
+            if (target.packed == null || target.packed.length != packed.length) {
+                target.packed = new long[packed.length];
+                target.data = null;
+            }
+            System.arraycopy(packed, 0, target.packed, 0, packed.length);
+            return;
         }
+        if (target.data == null || target.data.length != data.length) {
+            target.data = new byte[data.length];
+            target.packed = null;
+        }
+        System.arraycopy(data, 0, target.data, 0, data.length);
     }
 
     /**
@@ -267,17 +502,321 @@ public class Cube implements Serializable {
         this.bound = bound;
     }
 
+    /**
+     * Returns the number of twist sequences this cube stands for. A search
+     * only follows one order of twists over the same axis (see canTwist()),
+     * so a solution should be counted this many times.
+     * 
+     * @return the number of twist sequences leading to this cube
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the last twist (see twist(int, CubeCache)) leading to this
+     * cube, or -1 if none.
+     * 
+     * @return the index of the last twist
+     */
+    public int getLastTwist() {
+        return lastTwist;
+    }
+
+    /**
+     * Returns the number of twists over the same axis as the last twist at
+     * the end of the twists leading to this cube
+     * 
+     * @return the number of twists over the last axis
+     */
+    public int getRunLength() {
+        return runLength;
+    }
+
+    /**
+     * Returns if the last twist leading to this cube was done twice in a row
+     * 
+     * @return true if the last two twists are the same
+     */
+    public boolean isRepeated() {
+        return repeated;
+    }
+
+    /**
+     * Returns the twists over the axis of the last twist at the end of the
+     * twists leading to this cube, as a set: 2 bits per twist over the axis
+     * count how many times it is done (see followingRun()). Only used for
+     * cubes up to size 9, larger cubes have too many twists per axis.
+     * 
+     * @return the twists over the last axis, 0 if none
+     */
+    public int getRun() {
+        return run;
+    }
+
+    /**
+     * Sets the twists leading to this cube, for a cube received from another
+     * process (see the getters of each value).
+     * 
+     * @param twists
+     *            number of twists
+     * @param lastTwist
+     *            index of the last twist, or -1 if none
+     * @param runLength
+     *            number of twists over the axis of the last twist at the end
+     * @param repeated
+     *            true if the last two twists are the same
+     * @param weight
+     *            number of twist sequences leading to this cube
+     * @param run
+     *            set of the twists over the axis of the last twist at the end
+     */
+    public void setPath(int twists, int lastTwist, int runLength,
+            boolean repeated, int weight, int run) {
+        this.twists = twists;
+        this.lastTwist = lastTwist;
+        this.runLength = runLength;
+        this.repeated = repeated;
+        this.weight = weight;
+        this.run = run;
+    }
+
+    /**
+     * Copies the colors of all elements to an array, in the order of
+     * getColor().
+     * 
+     * @param target
+     *            array to copy to
+     * @param offset
+     *            position in the array of the first element
+     */
+    public void getColors(byte[] target, int offset) {
+        if (cubies != null && offset == 0) {
+            tables.cubies.colors(cubies, target);
+        } else if (data == null) {
+            for (int i = 0; i < SIDES * size * size; i++) {
+                target[offset + i] = color(i);
+            }
+        } else {
+            System.arraycopy(data, 0, target, offset, data.length);
+        }
+    }
+
+    /**
+     * Sets the colors of all elements from an array, in the order of
+     * getColor().
+     * 
+     * @param source
+     *            array to copy from
+     * @param offset
+     *            position in the array of the first element
+     */
+    public void setColors(byte[] source, int offset) {
+        int facelets = SIDES * size * size;
+        if (cubies != null) {
+            cubies = tables.cubies.fromColors(Arrays.copyOfRange(source,
+                    offset, offset + facelets));
+            if (cubies == null) {
+                throw new Error("cube without the standard colors");
+            }
+        } else if (packed != null) {
+            packed = tables.packing.pack(
+                    Arrays.copyOfRange(source, offset, offset + facelets));
+        } else {
+            System.arraycopy(source, offset, data, 0, facelets);
+        }
+    }
+
+    /**
+     * Returns if a search should follow a twist of this cube. Twists over the
+     * same axis can be done in any order with the same result, so only the
+     * orders with increasing twist indexes are followed, and weights make up
+     * for the others. Twists that undo the previous twist, or that repeat
+     * it a third time, can never be part of a shortest solution.
+     * 
+     * @param move
+     *            index of the twist
+     * @return true if the twist should be followed
+     */
+    public boolean canTwist(int move) {
+        return canFollow(size, lastTwist, repeated, move);
+    }
+
+    /**
+     * Returns if a search should follow a twist after another twist (see
+     * canTwist()).
+     * 
+     * @param size
+     *            size of the cube
+     * @param last
+     *            index of the previous twist, -1 if none
+     * @param repeated
+     *            true if the previous twist was done twice in a row
+     * @param move
+     *            index of the twist
+     * @return true if the twist should be followed
+     */
+    public static boolean canFollow(int size, int last, boolean repeated,
+            int move) {
+        if (last < 0 || !sameAxis(size, move, last)) {
+            return true;
+        }
+        if (move == last) {
+            return !repeated;
+        }
+        return move > last && move != inverseTwist(last);
+    }
+
+    /**
+     * Returns if two twists turn around the same axis
+     */
+    public static boolean sameAxis(int size, int move, int other) {
+        return move / (2 * (size - 1)) == other / (2 * (size - 1));
+    }
+
+    /**
+     * Computes the weight of a cube after a twist over the same axis as the
+     * previous one. The weight counts the orders of the twists over the same
+     * axis at the end: n! / 2^(number of twists done twice).
+     * 
+     * @param weight
+     *            weight before the twist
+     * @param runLength
+     *            number of twists over the axis at the end, including this
+     *            twist
+     * @param repeated
+     *            true if the twist is the same as the previous one
+     * @return the weight after the twist
+     */
+    public static int followingWeight(int weight, int runLength,
+            boolean repeated) {
+        if (repeated) {
+            return weight * runLength / 2;
+        }
+        return weight * runLength;
+    }
+
+    /**
+     * Adds a twist to a set of twists over the same axis (see getRun())
+     * 
+     * @param size
+     *            size of the cube
+     * @param run
+     *            set of twists over the axis of the twist
+     * @param move
+     *            index of the twist
+     * @return the set with the twist added
+     */
+    public static int followingRun(int size, int run, int move) {
+        return run + (1 << 2 * (move % (2 * (size - 1))));
+    }
+
+    /**
+     * Returns the number of longs getState() writes for a cube of a size
+     * 
+     * @param size
+     *            size of the cube
+     * @return the number of longs
+     */
+    public static int stateWords(int size) {
+        return (SIDES * size * size + STATE_ELEMENTS - 1) / STATE_ELEMENTS;
+    }
+
+    /**
+     * Writes the colors of all elements to an array of longs, 3 bits per
+     * element. Cubes with the same colors write the same longs.
+     * 
+     * @param target
+     *            array of at least stateWords() longs
+     */
+    public void getState(long[] target) {
+        if (cubies != null) {
+            Arrays.fill(target, 0, stateWords(size), 0);
+            for (int i = 0; i < cubies.length; i++) {
+                target[i / STATE_CUBIES] |= (long) cubies[i] << 7 * (i % STATE_CUBIES);
+            }
+            return;
+        }
+
+        int word = 0;
+        int shift = 0;
+        long value = 0;
+        for (int i = 0; i < SIDES * size * size; i++) {
+            value |= (long) color(i) << shift;
+            shift += 3;
+            if (shift == 3 * STATE_ELEMENTS) {
+                target[word++] = value;
+                value = 0;
+                shift = 0;
+            }
+        }
+        if (shift > 0) {
+            target[word] = value;
+        }
+    }
+
     /**
      * Returns if this cube is solved or not.
      * 
      * @return true if solved, false if not
      */
     public boolean isSolved() {
-        for (byte i = 0; i < SIDES; i++) {
+        if (cubies != null) {
+            return Arrays.equals(cubies, tables.cubies.solved);
+        }
+        if (packed != null) {
+            return tables.packing.isSolved(packed);
+        }
+        if (tables.kernel != null) {
+            return tables.kernel.isSolved(data);
+        }
+
+        int sideSize = size * size;
+        for (int first = 0; first < data.length; first += sideSize) {
+            // all elements must be the same color as first element
+            byte color = data[first];
+            for (int j = first + 1; j < first + sideSize; j++) {
+                if (data[j] != color) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns if this cube would be solved after a twist, without twisting
+     * it. Unpacked cubes and cubes stored as pieces read every element or
+     * piece from where the twist takes it from, packed cubes are twisted into
+     * a scratch buffer.
+     * 
+     * @param move
+     *            index of the twist ( 0 <= move < moves(size) )
+     * @return true if the twist solves the cube
+     */
+    public boolean isSolvedAfter(int move) {
+        if (cubies != null) {
+            return tables.cubies.isSolvedAfter(move, cubies);
+        }
+        if (packed != null) {
+            if (packedScratch == null || packedScratch.length != packed.length) {
+                packedScratch = new long[packed.length];
+            }
+            Packing packing = tables.packing;
+            packing.twist(move, packed, packedScratch);
+            return packing.isSolved(packedScratch);
+        }
+        if (tables.kernel != null) {
+            return tables.kernel.isSolvedAfter(move, data);
+        }
+
+        int[] source = tables.sources[move];
+        int sideSize = size * size;
+        for (int first = 0; first < data.length; first += sideSize) {
             // all elements must be the same color as first element
-            byte color = data[i][0];
-            for (int j = 1; j < size * size; j++) {
-                if (data[i][j] != color) {
+            byte color = data[source[first]];
+            for (int j = first + 1; j < first + sideSize; j++) {
+                if (data[source[j]] != color) {
                     return false;
                 }
             }
@@ -285,6 +824,98 @@ public class Cube implements Serializable {
         return true;
     }
 
+    /**
+     * Returns the color of an element, both for packed and unpacked cubes.
+     * 
+     * @param facelet
+     *            position of the element: side * size * size + row * size +
+     *            column
+     * @return the color of the element
+     */
+    public byte getColor(int facelet) {
+        return color(facelet);
+    }
+
+    /**
+     * Returns a lower bound for the number of twists needed to solve this
+     * cube. Counts the elements that have to change before every side is a
+     * single color, and divides by the most elements a single twist moves.
+     * For sides with an element no twist moves the color is known, for the
+     * others at least the elements not of the most common color have to
+     * change.
+     * 
+     * @return a number of twists that is never more than needed
+     */
+    public int lowerBound() {
+        int sideSize = size * size;
+        if (sideSize > MAX_COUNTED_ELEMENTS) {
+            return 0;
+        }
+
+        if (cubies != null) {
+            int changes = tables.cubies.changes(cubies);
+            if (changes >= 0) {
+                return (changes + tables.maxMoved - 1) / tables.maxMoved;
+            }
+        }
+
+        // packed cubes and cubes stored as pieces write out their colors once
+        byte[] data = this.data;
+        if (data == null) {
+            if (colorScratch == null) {
+                colorScratch = new byte[SIDES * sideSize];
+            }
+            getColors(colorScratch, 0);
+            data = colorScratch;
+        }
+
+        int changes = 0;
+        for (int side = 0; side < SIDES; side++) {
+            int first = facelet(side, 0);
+            int fixed = tables.fixed[side];
+
+            if (fixed >= 0) {
+                byte color = data[fixed];
+                for (int i = first; i < first + sideSize; i++) {
+                    if (data[i] != color) {
+                        changes++;
+                    }
+                }
+            } else {
+                // count all colors at once, 10 bits per color
+                long counts = 0;
+                for (int i = first; i < first + sideSize; i++) {
+                    counts += 1L << (10 * data[i]);
+                }
+                int most = 0;
+                for (int color = 0; color < SIDES; color++) {
+                    most = Math.max(most, (int) (counts >>> (10 * color)) & 1023);
+                }
+                changes += sideSize - most;
+            }
+        }
+
+        // rounded up
+        return (changes + tables.maxMoved - 1) / tables.maxMoved;
+    }
+
+    /**
+     * Returns the highest value lowerBound() can return for a cube of the
+     * given size. Searches only need to compute the bound when the number of
+     * twists left is smaller.
+     * 
+     * @param size
+     *            size of the cube
+     * @return the highest lower bound of any cube of this size
+     */
+    public static int maxLowerBound(int size) {
+        if (size * size > MAX_COUNTED_ELEMENTS) {
+            return 0;
+        }
+        int maxMoved = tables(size).maxMoved;
+        return (SIDES * size * size + maxMoved - 1) / maxMoved;
+    }
+
     /**
      * Twists this cube in each way possible.
      * 
@@ -295,19 +926,42 @@ public class Cube implements Serializable {
      */
     public Cube[] generateChildren(CubeCache cache) {
         // number of possible twists is constant for each size cube
-        Cube[] result = new Cube[6 * (size - 1)];
-        int next = 0;
+        return generateChildren(new Cube[moves(size)], cache);
+    }
 
-        for (Axis axis : Axis.values()) {
-            for (int row = 1; row < size; row++) {
-                result[next++] = twist(axis, row, true, cache);
-                result[next++] = twist(axis, row, false, cache);
-            }
+    /**
+     * Twists this cube in each way possible, storing the children in a given
+     * array instead of a new one.
+     * 
+     * @param result
+     *            array to store the children in, at least moves(size) long
+     * @param cache
+     *            cache used to get new cube objects from.
+     * 
+     * @return the given array, with all the possible children of this cube.
+     */
+    public Cube[] generateChildren(Cube[] result, CubeCache cache) {
+        for (int move = 0; move < moves(size); move++) {
+            result[move] = twist(move, cache);
         }
 
         return result;
     }
 
+    /**
+     * Returns the number of possible twists of a cube of the given size. The
+     * twists are numbered from 0, first all the twists over the X axis, then Y
+     * and Z. Per axis the rows go from 1 to size - 1, each row first in
+     * positive and then in negative direction.
+     * 
+     * @param size
+     *            size of the cube
+     * @return the number of possible twists
+     */
+    public static int moves(int size) {
+        return 6 * (size - 1);
+    }
+
     /**
      * Twist the cube, returning the result as a new cube.
      * 
@@ -333,28 +987,126 @@ public class Cube implements Serializable {
                             + size);
         }
 
-        Cube result = cache.get();
-        this.copyTo(result);
-
-        switch (axis) {
-        case X:
-            result.twistX(row, direction);
-            break;
-        case Y:
-            result.twistY(row, direction);
-            break;
-        case Z:
-            result.twistZ(row, direction);
-            break;
-        default:
-            // should not happen, but you never know :)
-            throw new Error("unknown axis in twist");
-        }
-        return result;
+        return twist(moveIndex(axis, row, direction), cache);
     }
 
     /**
-     * Print cube.
+     * Twist the cube, returning the result as a new cube. Copies and twists
+     * in one go using the precomputed twist table.
+     * 
+     * @param move
+     *            index of the twist ( 0 <= move < moves(size) )
+     * @param cache
+     *            cache used to get new cube objects from.
+     * 
+     * @return the resulting cube after twisting
+     */
+    public Cube twist(int move, CubeCache cache) {
+        Cube result = cache.get();
+        result.size = size;
+        result.bound = bound;
+        result.followPath(this, move);
+        result.tables = tables;
+
+        if (cubies != null) {
+            if (result.cubies == null || result.cubies.length != cubies.length) {
+                result.cubies = new byte[cubies.length];
+                result.data = null;
+                result.packed = null;
+            }
+            tables.cubies.twist(move, cubies, result.cubies);
+            return result;
+        }
+        if (packed != null) {
+            if (result.packed == null || result.packed.length != packed.length) {
+                result.packed = new long[packed.length];
+                result.data = null;
+            }
+            tables.packing.twist(move, packed, result.packed);
+            return result;
+        }
+
+        if (result.data == null || result.data.length != data.length) {
+            result.data = new byte[data.length];
+            result.packed = null;
+        }
+
+        if (tables.kernel != null) {
+            tables.kernel.twist(move, data, result.data);
+        } else {
+            permute(tables.sources[move], data, result.data);
+        }
+        return result;
+    }
+
+    /**
+     * Twist this cube itself, instead of returning a new cube. Only moves the
+     * elements that change place, four at a time, and does not allocate
+     * anything. Undo with untwist().
+     * 
+     * @param move
+     *            index of the twist ( 0 <= move < moves(size) )
+     */
+    public void twistInPlace(int move) {
+        permute(move);
+        twists++;
+    }
+
+    /**
+     * Twist this cube itself, and record the twist as the last one leading to
+     * it, as twist(int, CubeCache) does for the new cube. Used to rebuild a
+     * cube from the twists leading to it.
+     * 
+     * @param move
+     *            index of the twist ( 0 <= move < moves(size) )
+     */
+    public void follow(int move) {
+        permute(move);
+        followPath(this, move);
+    }
+
+    /**
+     * Undo a twistInPlace() of this cube.
+     * 
+     * @param move
+     *            index of the twist to undo
+     */
+    public void untwist(int move) {
+        permute(inverseTwist(move));
+        twists--;
+    }
+
+    /**
+     * Returns where every element of a cube comes from for every twist, in
+     * the order of generateChildren(). Positions are as in getColor().
+     * 
+     * @param size
+     *            size of the cube
+     * @return per twist, for every position the position it is twisted from
+     */
+    public static int[][] twistSources(int size) {
+        int[][] sources = tables(size).sources;
+        int[][] result = new int[sources.length][];
+        for (int move = 0; move < sources.length; move++) {
+            result[move] = sources[move].clone();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the twist that undoes a twist: the same row in the other
+     * direction.
+     * 
+     * @param move
+     *            index of a twist
+     * @return index of the inverse twist
+     */
+    public static int inverseTwist(int move) {
+        return move ^ 1;
+    }
+
+    /**
+     * Print cube.
      * 
      * @param out
      *            stream to use as output
@@ -391,6 +1143,56 @@ public class Cube implements Serializable {
 
     }
 
+    /**
+     * Writes the data in the serialized form, an array of sides.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        byte[][] sides = new byte[SIDES][size * size];
+        for (int side = 0; side < SIDES; side++) {
+            for (int element = 0; element < size * size; element++) {
+                sides[side][element] = color(facelet(side, element));
+            }
+        }
+
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("size", size);
+        fields.put("data", sides);
+        fields.put("twists", twists);
+        fields.put("bound", bound);
+        fields.put("lastTwist", lastTwist);
+        fields.put("runLength", runLength);
+        fields.put("repeated", repeated);
+        fields.put("weight", weight);
+        fields.put("run", run);
+        out.writeFields();
+    }
+
+    /**
+     * Reads the serialized form and flattens the sides into the data array.
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        size = fields.get("size", 0);
+        twists = fields.get("twists", 0);
+        bound = fields.get("bound", 0);
+        lastTwist = fields.get("lastTwist", -1);
+        runLength = fields.get("runLength", 0);
+        repeated = fields.get("repeated", false);
+        weight = fields.get("weight", 1);
+        run = fields.get("run", 0);
+        tables = tables(size);
+
+        byte[][] sides = (byte[][]) fields.get("data", null);
+        data = new byte[SIDES * size * size];
+        for (int side = 0; side < SIDES; side++) {
+            System.arraycopy(sides[side], 0, data, facelet(side, 0),
+                    size * size);
+        }
+
+        compact();
+    }
+
     // *** Only private functions ahead. No need to understand those ;) ***\\
 
     /**
@@ -404,6 +1206,31 @@ public class Cube implements Serializable {
         return size - 1 - value;
     }
 
+    /**
+     * Sets the twists leading to this cube to those leading to a parent cube,
+     * followed by a twist. The parent can be this cube itself.
+     * 
+     * @param parent
+     *            cube this cube is twisted from
+     * @param move
+     *            index of the twist
+     */
+    private void followPath(Cube parent, int move) {
+        if (parent.lastTwist >= 0 && sameAxis(size, move, parent.lastTwist)) {
+            runLength = parent.runLength + 1;
+            repeated = move == parent.lastTwist;
+            weight = followingWeight(parent.weight, runLength, repeated);
+            run = followingRun(size, parent.run, move);
+        } else {
+            runLength = 1;
+            repeated = false;
+            weight = parent.weight;
+            run = followingRun(size, 0, move);
+        }
+        lastTwist = move;
+        twists = parent.twists + 1;
+    }
+
     /**
      * Computes the position into the data array for each side from the row and
      * column
@@ -419,41 +1246,1011 @@ public class Cube implements Serializable {
     }
 
     /**
-     * rotate side of a cube (side effect of twisting)
+     * Computes the position into the data array of an element of a side
      * 
      * @param side
-     *            side to turn
-     * @param direction
-     *            direction to turn side in (positive or negative)
+     *            side of element
+     * @param element
+     *            position of element in the side (see element())
+     * @return position in data array of element
      */
-    private void rotate(int side, boolean direction) {
-        byte[] result = new byte[size * size];
+    private int facelet(int side, int element) {
+        return (side * size * size) + element;
+    }
 
-        if (direction) {
-            for (int row = 0; row < size; row++) {
-                int toColumn = inverse(row);
-                for (int column = 0; column < size; column++) {
-                    int toRow = column;
-                    // System.out.println(row + "," + column + " <= " + toRow
-                    // + "," + toColumn);
-                    result[(toRow * size) + toColumn] = data[side][(row * size)
-                            + column];
+    /**
+     * Returns the color of an element, for every way of storing the cube
+     * 
+     * @param facelet
+     *            position of the element in the data array
+     * @return the color of the element
+     */
+    private byte color(int facelet) {
+        if (cubies != null) {
+            return tables.cubies.color(cubies, facelet);
+        }
+        if (packed != null) {
+            return tables.packing.color(packed, facelet);
+        }
+        return data[facelet];
+    }
+
+    /**
+     * Applies a twist to the data of this cube. Packed cubes are twisted into
+     * a scratch buffer which is then swapped with the data.
+     */
+    private void permute(int move) {
+        if (cubies != null) {
+            tables.cubies.twist(move, cubies);
+            return;
+        }
+        if (packed != null) {
+            if (packedScratch == null || packedScratch.length != packed.length) {
+                packedScratch = new long[packed.length];
+            }
+            tables.packing.twist(move, packed, packedScratch);
+            long[] tmp = packed;
+            packed = packedScratch;
+            packedScratch = tmp;
+            return;
+        }
+
+        if (tables.kernel != null) {
+            tables.kernel.twist(move, data);
+            return;
+        }
+
+        byte[] data = this.data;
+        int[] cycle = tables.cycles[move];
+        for (int i = 0; i < cycle.length; i += 4) {
+            int a = cycle[i];
+            int b = cycle[i + 1];
+            int c = cycle[i + 2];
+            int d = cycle[i + 3];
+
+            byte tmp = data[a];
+            data[a] = data[b];
+            data[b] = data[c];
+            data[c] = data[d];
+            data[d] = tmp;
+        }
+    }
+
+    /**
+     * Moves all elements to their place after a twist
+     * 
+     * @param source
+     *            twist table of the twist
+     * @param from
+     *            elements before the twist
+     * @param to
+     *            elements after the twist
+     */
+    private static void permute(int[] source, byte[] from, byte[] to) {
+        for (int i = 0; i < to.length; i++) {
+            to[i] = from[source[i]];
+        }
+    }
+
+    /**
+     * Index of a twist, in the order generateChildren() produces them
+     */
+    private int moveIndex(Axis axis, int row, boolean direction) {
+        return (axis.ordinal() * (size - 1) + row - 1) * 2 + (direction ? 0 : 1);
+    }
+
+    /**
+     * Converts the data of this cube to the representation of the mode set
+     * (see setCubies() and setPacked())
+     */
+    private void compact() {
+        if (cubieMode) {
+            if (tables.cubies == null) {
+                throw new Error(unsupportedMode(size));
+            }
+            cubies = tables.cubies.fromColors(data);
+            if (cubies == null) {
+                throw new Error(
+                        "only cubes with the standard colors can be stored as cubies");
+            }
+            data = null;
+        } else if (packedMode) {
+            pack();
+        }
+    }
+
+    /**
+     * Converts the data of this cube to the packed representation
+     */
+    private void pack() {
+        if (tables.packing == null) {
+            throw new Error("packed cubes are supported up to size "
+                    + MAX_PACKED_SIZE);
+        }
+        packed = tables.packing.pack(data);
+        data = null;
+    }
+
+    /**
+     * Returns the twist tables for cubes of the given size, creating them the
+     * first time they are needed
+     */
+    private static synchronized Tables tables(int size) {
+        Tables result = sizeTables.get(size);
+        if (result == null) {
+            result = new Tables(size);
+            sizeTables.put(size, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the pieces of cubes of the given size and how twists move them
+     * (see Coordinates), whether cubes are stored as pieces or not
+     * 
+     * @param size
+     *            size of the cubes
+     * @return the layout of the pieces, null for sizes the cubie mode does
+     *         not support
+     */
+    static Cubies cubieLayout(int size) {
+        return tables(size).cubies;
+    }
+
+    /**
+     * Twist tables for cubes of one size, and what can be derived from them
+     */
+    private static final class Tables {
+
+        /*
+         * for every twist (in the order of generateChildren()) and every
+         * position in the data array, the position the element is twisted
+         * from.
+         */
+        final int[][] sources;
+
+        /*
+         * the same twists as cycles of four elements, used to twist in place:
+         * per twist groups of four positions a, b, c, d where a gets the
+         * element of b, b of c, c of d and d of a.
+         */
+        final int[][] cycles;
+
+        /*
+         * per side the position of an element no twist ever moves, or -1 if
+         * all elements of the side can move. The color of that element is
+         * the color of the side when the cube is solved.
+         */
+        final int[] fixed;
+
+        // the most elements a single twist moves
+        final int maxMoved;
+
+        // generated twists and checks, null if not used (see setKernels())
+        final Kernel kernel;
+
+        // pieces of the cube, null for sizes the cubie mode does not support
+        final Cubies cubies;
+
+        // packed layout, null for sizes the packed mode does not support.
+        // Created with the tables, so searches never lock to look it up
+        final Packing packing;
+
+        Tables(int size) {
+            sources = createSources(size);
+
+            cycles = new int[sources.length][];
+            int most = 0;
+            for (int move = 0; move < sources.length; move++) {
+                cycles[move] = createCycles(sources[move]);
+                most = Math.max(most, cycles[move].length);
+            }
+            maxMoved = most;
+
+            if (kernelMode && size <= KernelGenerator.MAX_SIZE) {
+                kernel = KernelGenerator.generate(size, sources, cycles);
+            } else {
+                kernel = null;
+            }
+
+            if (size >= 2 && size <= MAX_CUBIE_SIZE) {
+                cubies = new Cubies(size, sources);
+            } else {
+                cubies = null;
+            }
+
+            if (size <= MAX_PACKED_SIZE) {
+                packing = new Packing(size, sources);
+            } else {
+                packing = null;
+            }
+
+            fixed = new int[SIDES];
+            Arrays.fill(fixed, -1);
+            for (int i = 0; i < sources[0].length; i++) {
+                boolean moves = false;
+                for (int[] source : sources) {
+                    moves |= source[i] != i;
+                }
+                if (!moves) {
+                    fixed[i / (size * size)] = i;
                 }
             }
-        } else {
-            for (int row = 0; row < size; row++) {
-                int fromColumn = inverse(row);
-                for (int column = 0; column < size; column++) {
-                    int fromRow = column;
-                    // System.out.println(row + "," + column + " <= " + fromRow
-                    // + "," + fromColumn);
-                    result[(row * size) + column] = data[side][(fromRow * size)
-                            + fromColumn];
+        }
+    }
+
+    /**
+     * Splits a twist into cycles of four elements. A twist turns a part of
+     * the cube a quarter, so every element that moves is back in its place
+     * after four twists.
+     * 
+     * @param source
+     *            twist table of the twist
+     * @return groups of four positions, each getting the element of the next
+     */
+    private static int[] createCycles(int[] source) {
+        int[] result = new int[source.length];
+        boolean[] done = new boolean[source.length];
+        int next = 0;
+
+        for (int i = 0; i < source.length; i++) {
+            if (done[i] || source[i] == i) {
+                continue;
+            }
+            int position = i;
+            for (int j = 0; j < 4; j++) {
+                result[next++] = position;
+                done[position] = true;
+                position = source[position];
+            }
+            if (position != i) {
+                throw new Error("twist is not made of cycles of four elements");
+            }
+        }
+        return Arrays.copyOf(result, next);
+    }
+
+    /**
+     * Computes where every element of a cube comes from for every twist. Found
+     * by twisting a cube whose elements are labeled with their own position,
+     * 7 bits of the label at a time.
+     * 
+     * @return per twist, for every position in the data array the position it
+     *         is twisted from
+     */
+    private static int[][] createSources(int size) {
+        Cube probe = new Cube(size, false);
+        int facelets = probe.data.length;
+        int[][] result = new int[moves(size)][facelets];
+
+        int move = 0;
+        for (Axis axis : Axis.values()) {
+            for (int row = 1; row < size; row++) {
+                for (boolean direction : new boolean[] { true, false }) {
+                    for (int bit = 0; bit == 0 || (facelets - 1) >> bit > 0; bit += 7) {
+                        for (int i = 0; i < facelets; i++) {
+                            probe.data[i] = (byte) ((i >> bit) & 0x7F);
+                        }
+
+                        switch (axis) {
+                        case X:
+                            probe.twistX(row, direction);
+                            break;
+                        case Y:
+                            probe.twistY(row, direction);
+                            break;
+                        case Z:
+                            probe.twistZ(row, direction);
+                            break;
+                        }
+
+                        for (int i = 0; i < facelets; i++) {
+                            result[move][i] |= probe.data[i] << bit;
+                        }
+                    }
+                    move++;
                 }
             }
         }
+        return result;
+    }
+
+    /**
+     * Layout of packed cubes of one size, and the twist kernels working on
+     * it. Every twist is a set of masks moving groups of elements that share
+     * the same source long, target long and shift at once.
+     */
+    private static final class Packing {
+
+        // long and bit offset of every element
+        private final int[] word;
+
+        private final int[] shift;
+
+        // number of longs of a packed cube
+        private final int words;
+
+        // mask of all the bits of one side
+        private final long sideMask;
+
+        // the bits of a side with every element set to 1
+        private final long sideOnes;
+
+        // per twist: the bits that are not moved, per long
+        private final long[][] keep;
+
+        // per twist: one entry per group of moved elements
+        private final int[][] from;
+
+        private final int[][] to;
+
+        private final int[][] distance;
+
+        private final long[][] mask;
+
+        Packing(int size, int[][] sources) {
+            int sideSize = size * size;
+            int sidesPerWord = 64 / (3 * sideSize);
+
+            word = new int[SIDES * sideSize];
+            shift = new int[SIDES * sideSize];
+            words = (SIDES + sidesPerWord - 1) / sidesPerWord;
 
-        System.arraycopy(result, 0, data[side], 0, result.length);
+            long ones = 0;
+            for (int element = 0; element < sideSize; element++) {
+                ones |= 1L << (3 * element);
+            }
+            sideOnes = ones;
+            sideMask = ones * 7;
+
+            for (int i = 0; i < word.length; i++) {
+                int side = i / sideSize;
+                word[i] = side / sidesPerWord;
+                shift[i] = 3 * (((side % sidesPerWord) * sideSize) + (i % sideSize));
+            }
+
+            keep = new long[sources.length][];
+            from = new int[sources.length][];
+            to = new int[sources.length][];
+            distance = new int[sources.length][];
+            mask = new long[sources.length][];
+
+            for (int move = 0; move < sources.length; move++) {
+                createKernel(move, sources[move]);
+            }
+        }
+
+        /**
+         * Groups the moved elements of a twist by source long, target long and
+         * shift distance
+         */
+        private void createKernel(int move, int[] source) {
+            List<int[]> groups = new ArrayList<int[]>();
+            List<Long> masks = new ArrayList<Long>();
+            keep[move] = new long[words];
+
+            for (int i = 0; i < source.length; i++) {
+                int j = source[i];
+                if (j == i) {
+                    keep[move][word[i]] |= 7L << shift[i];
+                    continue;
+                }
+                int[] group = { word[j], word[i], shift[i] - shift[j] };
+                int g = 0;
+                while (g < groups.size()
+                        && !Arrays.equals(groups.get(g), group)) {
+                    g++;
+                }
+                if (g == groups.size()) {
+                    groups.add(group);
+                    masks.add(0L);
+                }
+                masks.set(g, masks.get(g) | (7L << shift[j]));
+            }
+
+            from[move] = new int[groups.size()];
+            to[move] = new int[groups.size()];
+            distance[move] = new int[groups.size()];
+            mask[move] = new long[groups.size()];
+            for (int g = 0; g < groups.size(); g++) {
+                from[move][g] = groups.get(g)[0];
+                to[move][g] = groups.get(g)[1];
+                distance[move][g] = groups.get(g)[2];
+                mask[move][g] = masks.get(g);
+            }
+        }
+
+        long[] pack(byte[] data) {
+            long[] result = new long[words];
+            for (int i = 0; i < data.length; i++) {
+                result[word[i]] |= ((long) data[i]) << shift[i];
+            }
+            return result;
+        }
+
+        byte color(long[] packed, int facelet) {
+            return (byte) ((packed[word[facelet]] >>> shift[facelet]) & 7);
+        }
+
+        boolean isSolved(long[] packed) {
+            int sideSize = word.length / SIDES;
+            for (int first = 0; first < word.length; first += sideSize) {
+                long side = (packed[word[first]] >>> shift[first]) & sideMask;
+                // all elements must be the same color as first element
+                if (side != (side & 7) * sideOnes) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Twists the packed cube source into target
+         */
+        void twist(int move, long[] source, long[] target) {
+            long[] keep = this.keep[move];
+            for (int i = 0; i < words; i++) {
+                target[i] = source[i] & keep[i];
+            }
+
+            int[] from = this.from[move];
+            int[] to = this.to[move];
+            int[] distance = this.distance[move];
+            long[] mask = this.mask[move];
+            for (int g = 0; g < from.length; g++) {
+                long bits = source[from[g]] & mask[g];
+                if (distance[g] >= 0) {
+                    target[to[g]] |= bits << distance[g];
+                } else {
+                    target[to[g]] |= bits >>> -distance[g];
+                }
+            }
+        }
+    }
+
+    /**
+     * Layout of cubes of one size stored as pieces, and the twists working on
+     * it. The pieces are found with the twist tables, as in PatternDatabase:
+     * the elements moved by the same twists belong to the same piece, unless
+     * they are on sides of the same axis (the centers of opposite sides).
+     * Every position of a corner, edge or center holds a piece of the same
+     * kind and its orientation, as piece * ORIENTATIONS + orientation. Pieces
+     * are numbered per kind by the position they have in the solved cube,
+     * and their elements by the elements of that position. The orientation
+     * is the index of a permutation in PERMUTATIONS: element j of the
+     * position shows element PERMUTATIONS[orientation][j] of the piece.
+     */
+    static final class Cubies {
+
+        // every order of three elements, the unchanged order first
+        private static final int[][] PERMUTATIONS = { { 0, 1, 2 },
+                { 0, 2, 1 }, { 1, 0, 2 }, { 1, 2, 0 }, { 2, 0, 1 },
+                { 2, 1, 0 } };
+
+        private static final int ORIENTATIONS = PERMUTATIONS.length;
+
+        private final int sideSize;
+
+        // per position the elements of the piece at that position, corners
+        // first, then edges, then centers
+        private final int[][] positions;
+
+        // per position the first position of the same kind
+        private final int[] first;
+
+        // per element the position it is part of, and its index there
+        private final int[] positionOf;
+
+        private final int[] indexOf;
+
+        // per number of elements of a piece and set of colors (a bit per
+        // color), the position of the piece in the solved cube, or -1
+        private final int[][] pieces;
+
+        // per position its content in the solved cube
+        final byte[] solved;
+
+        // per position and content, the colors of the elements
+        private final byte[][][] colors;
+
+        /*
+         * what the pieces add to the lower bound (see changes()), per
+         * position and content two longs from bounds[first[position] +
+         * content]: the number of each color on the first two sides without
+         * a fixed element, 4 bits each, then those of the third side and, from
+         * bit 32, the elements on the other sides not of the color of the
+         * side. Null if the layout of the sides does not fit.
+         */
+        private final long[] bounds;
+
+        private final int[] boundOffset;
+
+        // sides without a fixed element, and the position of the fixed corner
+        private final int[] unfixed;
+
+        private int fixedPosition = -1;
+
+        /*
+         * per twist and position, the position the piece comes from, and the
+         * content the position gets for every content of that position
+         */
+        private final int[][] sources;
+
+        private final byte[][][] turns;
+
+        // the same twists as cycles of four positions (see Tables.cycles),
+        // with the turn of each position
+        private final int[][] cycles;
+
+        private final byte[][][] cycleTurns;
+
+        Cubies(int size, int[][] sources) {
+            sideSize = size * size;
+
+            // group the elements by the twists moving them, in order of their
+            // first element
+            Map<Long, List<Integer>> groups = new LinkedHashMap<Long, List<Integer>>();
+            for (int i = 0; i < sources[0].length; i++) {
+                long moves = groupOf(new int[] { i }, sources);
+                if (!groups.containsKey(moves)) {
+                    groups.put(moves, new ArrayList<Integer>());
+                }
+                groups.get(moves).add(i);
+            }
+
+            List<int[]> corners = new ArrayList<int[]>();
+            List<int[]> edges = new ArrayList<int[]>();
+            List<int[]> centers = new ArrayList<int[]>();
+            for (List<Integer> group : groups.values()) {
+                int[] elements = new int[group.size()];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = group.get(i);
+                }
+                if (elements.length == 3 && onDifferentAxes(elements)) {
+                    corners.add(elements);
+                } else if (elements.length == 2 && onDifferentAxes(elements)) {
+                    edges.add(elements);
+                } else {
+                    for (int element : elements) {
+                        centers.add(new int[] { element });
+                    }
+                }
+            }
+            if (corners.size() != 8 || edges.size() != (size == 3 ? 12 : 0)
+                    || centers.size() != (size == 3 ? SIDES : 0)) {
+                throw new Error("unexpected pieces for cube of size " + size);
+            }
+
+            List<int[]> all = new ArrayList<int[]>(corners);
+            all.addAll(edges);
+            all.addAll(centers);
+            positions = all.toArray(new int[all.size()][]);
+
+            first = new int[positions.length];
+            positionOf = new int[sources[0].length];
+            indexOf = new int[sources[0].length];
+            pieces = new int[4][1 << SIDES];
+            for (int[] kind : pieces) {
+                Arrays.fill(kind, -1);
+            }
+            solved = new byte[positions.length];
+            for (int position = 0; position < positions.length; position++) {
+                int[] elements = positions[position];
+                first[position] = position == 0
+                        || positions[position - 1].length != elements.length ? position
+                        : first[position - 1];
+
+                int colors = 0;
+                for (int j = 0; j < elements.length; j++) {
+                    positionOf[elements[j]] = position;
+                    indexOf[elements[j]] = j;
+                    colors |= 1 << solvedColor(elements[j]);
+                }
+                pieces[elements.length][colors] = position;
+                solved[position] = (byte) ((position - first[position]) * ORIENTATIONS);
+            }
+
+            colors = new byte[positions.length][][];
+            for (int position = 0; position < positions.length; position++) {
+                int[] elements = positions[position];
+                int pieceCount = 0;
+                for (int other : first) {
+                    if (other == first[position]) {
+                        pieceCount++;
+                    }
+                }
+
+                colors[position] = new byte[pieceCount * ORIENTATIONS][elements.length];
+                for (int content = 0; content < colors[position].length; content++) {
+                    int piece = first[position] + content / ORIENTATIONS;
+                    int[] orientation = PERMUTATIONS[content % ORIENTATIONS];
+                    for (int j = 0; j < elements.length; j++) {
+                        // orientations that do not fit the kind never occur
+                        if (orientation[j] < elements.length) {
+                            colors[position][content][j] = solvedColor(positions[piece][orientation[j]]);
+                        }
+                    }
+                }
+            }
+
+            // the contents after every permutation of the elements of a
+            // position
+            byte[][] compose = new byte[ORIENTATIONS][ORIENTATIONS
+                    * Math.max(8, edges.size())];
+            for (int turn = 0; turn < ORIENTATIONS; turn++) {
+                for (int content = 0; content < compose[turn].length; content++) {
+                    int[] orientation = PERMUTATIONS[content % ORIENTATIONS];
+                    int[] result = new int[3];
+                    for (int j = 0; j < 3; j++) {
+                        result[j] = orientation[PERMUTATIONS[turn][j]];
+                    }
+                    compose[turn][content] = (byte) (content - content
+                            % ORIENTATIONS + permutation(result));
+                }
+            }
+
+            // the sides with a fixed element have the color of that element
+            int[] fixedSide = new int[SIDES];
+            Arrays.fill(fixedSide, -1);
+            for (int position = 0; position < positions.length; position++) {
+                if (groupOf(positions[position], sources) == 0) {
+                    fixedPosition = position;
+                    for (int element : positions[position]) {
+                        fixedSide[element / sideSize] = element;
+                    }
+                }
+            }
+            int count = 0;
+            int[] sides = new int[SIDES];
+            for (int side = 0; side < SIDES; side++) {
+                if (fixedSide[side] < 0) {
+                    sides[count++] = side;
+                }
+            }
+            unfixed = Arrays.copyOf(sides, count);
+
+            boundOffset = new int[positions.length];
+            if (unfixed.length <= 3 && sideSize < 16) {
+                int entries = 0;
+                for (int position = 0; position < positions.length; position++) {
+                    boundOffset[position] = entries;
+                    entries += colors[position].length;
+                }
+                bounds = new long[2 * entries];
+                for (int position = 0; position < positions.length; position++) {
+                    int[] elements = positions[position];
+                    for (int content = 0; content < colors[position].length; content++) {
+                        int entry = 2 * (boundOffset[position] + content);
+                        for (int j = 0; j < elements.length; j++) {
+                            int side = elements[j] / sideSize;
+                            byte color = colors[position][content][j];
+                            int u = Arrays.binarySearch(unfixed, side);
+                            if (u < 0) {
+                                if (color != solvedColor(fixedSide[side])) {
+                                    bounds[entry + 1] += 1L << 32;
+                                }
+                            } else if (u < 2) {
+                                bounds[entry] += 1L << 4 * (SIDES * u + color);
+                            } else {
+                                bounds[entry + 1] += 1L << 4 * color;
+                            }
+                        }
+                    }
+                }
+            } else {
+                bounds = null;
+            }
+
+            this.sources = new int[sources.length][positions.length];
+            turns = new byte[sources.length][positions.length][];
+            cycles = new int[sources.length][];
+            cycleTurns = new byte[sources.length][][];
+            for (int move = 0; move < sources.length; move++) {
+                for (int position = 0; position < positions.length; position++) {
+                    int[] elements = positions[position];
+                    int source = positionOf[sources[move][elements[0]]];
+                    int[] turn = { 0, 1, 2 };
+                    for (int j = 0; j < elements.length; j++) {
+                        int element = sources[move][elements[j]];
+                        if (positionOf[element] != source) {
+                            throw new Error("twist splits a piece");
+                        }
+                        turn[j] = indexOf[element];
+                    }
+                    this.sources[move][position] = source;
+                    turns[move][position] = compose[permutation(turn)];
+                    if (source == position && permutation(turn) != 0) {
+                        throw new Error("twist turns a piece in place");
+                    }
+                }
+
+                cycles[move] = createCycles(this.sources[move]);
+                cycleTurns[move] = new byte[cycles[move].length][];
+                for (int i = 0; i < cycles[move].length; i++) {
+                    cycleTurns[move][i] = turns[move][cycles[move][i]];
+                }
+            }
+        }
+
+        /**
+         * Returns the pieces of a cube given by the colors of its elements,
+         * or null if the colors are not those of a cube with the standard
+         * colors
+         */
+        byte[] fromColors(byte[] data) {
+            byte[] result = new byte[positions.length];
+            for (int position = 0; position < positions.length; position++) {
+                int[] elements = positions[position];
+                int colors = 0;
+                for (int element : elements) {
+                    colors |= 1 << data[element];
+                }
+                int piece = pieces[elements.length][colors];
+                if (piece < 0 || first[piece] != first[position]) {
+                    return null;
+                }
+
+                int[] orientation = { 0, 1, 2 };
+                for (int j = 0; j < elements.length; j++) {
+                    int k = 0;
+                    while (solvedColor(positions[piece][k]) != data[elements[j]]) {
+                        k++;
+                    }
+                    orientation[j] = k;
+                }
+                result[position] = (byte) ((piece - first[piece])
+                        * ORIENTATIONS + permutation(orientation));
+            }
+            return result;
+        }
+
+        byte color(byte[] cubies, int facelet) {
+            int position = positionOf[facelet];
+            return colors[position][cubies[position]][indexOf[facelet]];
+        }
+
+        /**
+         * Returns the number of positions of pieces
+         */
+        int positions() {
+            return positions.length;
+        }
+
+        /**
+         * Returns the number of elements of the pieces at a position: 3 for
+         * corners, 2 for edges and 1 for centers
+         */
+        int elements(int position) {
+            return positions[position].length;
+        }
+
+        /**
+         * Returns if any twist moves the piece at a position
+         */
+        boolean moves(int position) {
+            for (int[] source : sources) {
+                if (source[position] != position) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the piece a position holds, as the position of the piece in
+         * the solved cube
+         */
+        int piece(int position, byte content) {
+            return first[position] + content / ORIENTATIONS;
+        }
+
+        /**
+         * Returns the orientation of the piece a position holds: the index of
+         * the element of the position showing the first element of the piece
+         */
+        int orientation(byte content) {
+            int[] order = PERMUTATIONS[content % ORIENTATIONS];
+            int result = 0;
+            while (order[result] != 0) {
+                result++;
+            }
+            return result;
+        }
+
+        /**
+         * Returns a content of a position holding a piece with an orientation
+         * (see orientation()): the elements of the piece in order, starting
+         * at the element of the orientation. Where a twist takes the first
+         * element of a piece only depends on the orientation, so any order
+         * with the same orientation would do.
+         */
+        byte content(int piece, int orientation) {
+            int[] order = { 0, 1, 2 };
+            for (int j = 0; j < positions[piece].length; j++) {
+                order[(orientation + j) % positions[piece].length] = j;
+            }
+            return (byte) ((piece - first[piece]) * ORIENTATIONS + permutation(order));
+        }
+
+        /**
+         * Returns the number of elements that have to change before every
+         * side is a single color, as Cube.lowerBound() counts them, or -1 if
+         * the fixed corner is not in place
+         */
+        int changes(byte[] cubies) {
+            if (bounds == null
+                    || cubies[fixedPosition] != solved[fixedPosition]) {
+                return -1;
+            }
+
+            long first = 0;
+            long second = 0;
+            for (int position = 0; position < cubies.length; position++) {
+                int entry = 2 * (boundOffset[position] + cubies[position]);
+                first += bounds[entry];
+                second += bounds[entry + 1];
+            }
+
+            int result = (int) (second >>> 32);
+            for (int u = 0; u < unfixed.length; u++) {
+                long counts = u < 2 ? first >>> 4 * SIDES * u : second;
+                int most = 0;
+                for (int color = 0; color < SIDES; color++) {
+                    most = Math.max(most, (int) (counts >>> 4 * color) & 15);
+                }
+                result += sideSize - most;
+            }
+            return result;
+        }
+
+        /**
+         * Writes the colors of all elements of a cube to target, in the order
+         * of the data array
+         */
+        void colors(byte[] cubies, byte[] target) {
+            for (int position = 0; position < cubies.length; position++) {
+                int[] elements = positions[position];
+                byte[] colors = this.colors[position][cubies[position]];
+                for (int j = 0; j < elements.length; j++) {
+                    target[elements[j]] = colors[j];
+                }
+            }
+        }
+
+        boolean isSolvedAfter(int move, byte[] cubies) {
+            int[] source = sources[move];
+            byte[][] turn = turns[move];
+            for (int position = 0; position < cubies.length; position++) {
+                if (turn[position][cubies[source[position]]] != solved[position]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Twists the pieces of a cube in place
+         */
+        void twist(int move, byte[] cubies) {
+            int[] cycle = cycles[move];
+            byte[][] turn = cycleTurns[move];
+            for (int i = 0; i < cycle.length; i += 4) {
+                int a = cycle[i];
+                int b = cycle[i + 1];
+                int c = cycle[i + 2];
+                int d = cycle[i + 3];
+
+                byte tmp = cubies[a];
+                cubies[a] = turn[i][cubies[b]];
+                cubies[b] = turn[i + 1][cubies[c]];
+                cubies[c] = turn[i + 2][cubies[d]];
+                cubies[d] = turn[i + 3][tmp];
+            }
+        }
+
+        /**
+         * Twists the pieces of the cube source into target
+         */
+        void twist(int move, byte[] source, byte[] target) {
+            int[] from = sources[move];
+            byte[][] turn = turns[move];
+            for (int position = 0; position < target.length; position++) {
+                target[position] = turn[position][source[from[position]]];
+            }
+        }
+
+        /**
+         * Returns the twists moving the elements of a piece, a bit per twist
+         */
+        private static long groupOf(int[] elements, int[][] sources) {
+            long moves = 0;
+            for (int move = 0; move < sources.length; move++) {
+                if (sources[move][elements[0]] != elements[0]) {
+                    moves |= 1L << move;
+                }
+            }
+            return moves;
+        }
+
+        /**
+         * Color of an element in the solved cube: the side it is on
+         */
+        private byte solvedColor(int element) {
+            return (byte) (element / sideSize);
+        }
+
+        /**
+         * Checks if all elements are on sides of different axes, as the
+         * elements of a piece are.
+         */
+        private boolean onDifferentAxes(int[] elements) {
+            boolean[] axes = new boolean[3];
+            for (int element : elements) {
+                int side = element / sideSize;
+                int axis;
+                if (side == TOP || side == BOTTOM) {
+                    axis = 0;
+                } else if (side == LEFT || side == RIGHT) {
+                    axis = 1;
+                } else {
+                    axis = 2;
+                }
+                if (axes[axis]) {
+                    return false;
+                }
+                axes[axis] = true;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the index of a permutation in PERMUTATIONS
+         */
+        private static int permutation(int[] order) {
+            for (int i = 0; i < ORIENTATIONS; i++) {
+                if (Arrays.equals(PERMUTATIONS[i], order)) {
+                    return i;
+                }
+            }
+            throw new Error("not a permutation of three elements");
+        }
+    }
+
+    /**
+     * rotate side of a cube (side effect of twisting). Done in place, by
+     * rotating the elements four at a time, so no temporary array is needed.
+     * 
+     * @param side
+     *            side to turn
+     * @param direction
+     *            direction to turn side in (positive or negative)
+     */
+    private void rotate(int side, boolean direction) {
+        int first = facelet(side, 0);
+
+        // every element is part of a cycle of four elements: an element
+        // moves to (column, inverse(row)) when turning in positive direction
+        for (int row = 0; row < size / 2; row++) {
+            for (int column = row; column < inverse(row); column++) {
+                int a = first + element(row, column);
+                int b = first + element(column, inverse(row));
+                int c = first + element(inverse(row), inverse(column));
+                int d = first + element(inverse(column), row);
+
+                byte tmp = data[a];
+                if (direction) {
+                    data[a] = data[d];
+                    data[d] = data[c];
+                    data[c] = data[b];
+                    data[b] = tmp;
+                } else {
+                    data[a] = data[b];
+                    data[b] = data[c];
+                    data[c] = data[d];
+                    data[d] = tmp;
+                }
+            }
+        }
     }
 
     /**
@@ -469,22 +2266,27 @@ public class Cube implements Serializable {
         // + " in positive direction: " + direction);
 
         int firstElement = firstRow * size;
+        int sideSize = size * size;
 
         // warning: fiddling with cube content ahead :)
-        for (int element = firstElement; element < size * size; element++) {
+        for (int element = firstElement; element < sideSize; element++) {
+            int left = facelet(LEFT, element);
+            int front = left + sideSize;
+            int right = front + sideSize;
+            int back = right + sideSize;
 
             if (direction) {
-                byte tmp = data[BACK][element];
-                data[BACK][element] = data[RIGHT][element];
-                data[RIGHT][element] = data[FRONT][element];
-                data[FRONT][element] = data[LEFT][element];
-                data[LEFT][element] = tmp;
+                byte tmp = data[back];
+                data[back] = data[right];
+                data[right] = data[front];
+                data[front] = data[left];
+                data[left] = tmp;
             } else {
-                byte tmp = data[LEFT][element];
-                data[LEFT][element] = data[FRONT][element];
-                data[FRONT][element] = data[RIGHT][element];
-                data[RIGHT][element] = data[BACK][element];
-                data[BACK][element] = tmp;
+                byte tmp = data[left];
+                data[left] = data[front];
+                data[front] = data[right];
+                data[right] = data[back];
+                data[back] = tmp;
             }
         }
 
@@ -516,18 +2318,23 @@ public class Cube implements Serializable {
                 int backColumn = inverse(column);
                 int backElement = (backRow * size) + backColumn;
 
+                int top = facelet(TOP, element);
+                int front = facelet(FRONT, element);
+                int bottom = facelet(BOTTOM, element);
+                int back = facelet(BACK, backElement);
+
                 if (direction) {
-                    byte tmp = data[TOP][element];
-                    data[TOP][element] = data[FRONT][element];
-                    data[FRONT][element] = data[BOTTOM][element];
-                    data[BOTTOM][element] = data[BACK][backElement];
-                    data[BACK][backElement] = tmp;
+                    byte tmp = data[top];
+                    data[top] = data[front];
+                    data[front] = data[bottom];
+                    data[bottom] = data[back];
+                    data[back] = tmp;
                 } else {
-                    byte tmp = data[TOP][element];
-                    data[TOP][element] = data[BACK][backElement];
-                    data[BACK][backElement] = data[BOTTOM][element];
-                    data[BOTTOM][element] = data[FRONT][element];
-                    data[FRONT][element] = tmp;
+                    byte tmp = data[top];
+                    data[top] = data[back];
+                    data[back] = data[bottom];
+                    data[bottom] = data[front];
+                    data[front] = tmp;
                 }
             }
         }
@@ -554,32 +2361,32 @@ public class Cube implements Serializable {
             for (int column = 0; column < size; column++) {
                 int topRow = inverse(row);
                 int topColumn = column;
-                int topElement = element(topRow, topColumn);
+                int top = facelet(TOP, element(topRow, topColumn));
 
                 int rightRow = column;
                 int rightColumn = row;
-                int rightElement = element(rightRow, rightColumn);
+                int right = facelet(RIGHT, element(rightRow, rightColumn));
 
                 int bottomRow = row;
                 int bottomColumn = inverse(column);
-                int bottomElement = element(bottomRow, bottomColumn);
+                int bottom = facelet(BOTTOM, element(bottomRow, bottomColumn));
 
                 int leftRow = inverse(column);
                 int leftColumn = inverse(row);
-                int leftElement = element(leftRow, leftColumn);
+                int left = facelet(LEFT, element(leftRow, leftColumn));
 
                 if (direction) {
-                    byte tmp = data[TOP][topElement];
-                    data[TOP][topElement] = data[LEFT][leftElement];
-                    data[LEFT][leftElement] = data[BOTTOM][bottomElement];
-                    data[BOTTOM][bottomElement] = data[RIGHT][rightElement];
-                    data[RIGHT][rightElement] = tmp;
+                    byte tmp = data[top];
+                    data[top] = data[left];
+                    data[left] = data[bottom];
+                    data[bottom] = data[right];
+                    data[right] = tmp;
                 } else {
-                    byte tmp = data[TOP][topElement];
-                    data[TOP][topElement] = data[RIGHT][rightElement];
-                    data[RIGHT][rightElement] = data[BOTTOM][bottomElement];
-                    data[BOTTOM][bottomElement] = data[LEFT][leftElement];
-                    data[LEFT][leftElement] = tmp;
+                    byte tmp = data[top];
+                    data[top] = data[right];
+                    data[right] = data[bottom];
+                    data[bottom] = data[left];
+                    data[left] = tmp;
                 }
             }
         }
@@ -598,12 +2405,10 @@ public class Cube implements Serializable {
     private void checkIfConsistent() {
         int[] counts = new int[SIDES];
 
-        for (int side = 0; side < SIDES; side++) {
-            for (int element = 0; element < size * size; element++) {
-                int color = data[side][element];
+        for (int element = 0; element < data.length; element++) {
+            int color = data[element];
 
-                counts[color]++;
-            }
+            counts[color]++;
         }
 
         for (int i = 0; i < SIDES; i++) {
@@ -642,7 +2447,7 @@ public class Cube implements Serializable {
         // System.err.println("printing side = " + side + " row = " + row
         // + " column = " + column);
 
-        byte color = data[side][(row * size) + column];
+        byte color = color(facelet(side, element(row, column)));
 
         switch (color) {
         case WHITE:
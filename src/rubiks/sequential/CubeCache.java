@@ -18,6 +18,17 @@ public class CubeCache {
 
     private int currentSize;
 
+    /**
+     * Arrays for the children of a cube, one per number of twists. A search
+     * only looks at the children of one cube per depth at a time, so they can
+     * be reused.
+     */
+    private Cube[][] children = new Cube[0][];
+
+    /**
+     * Number of cubes created because the cache was empty
+     */
+    private long created = 0;
     
     /**
      * Constructor.
@@ -52,6 +63,7 @@ public class CubeCache {
      */
     public Cube get() {
         if (currentSize == 0) {
+            created++;
             return new Cube(cubeSize);
         }
 
@@ -59,4 +71,33 @@ public class CubeCache {
         return cache[currentSize];
     }
 
+    /**
+     * Get an array to store the children of a cube in. The same array is
+     * returned for cubes with the same number of twists.
+     * 
+     * @param twists
+     *            number of twists of the cube the children belong to
+     * @return an array large enough to hold all the children of a cube
+     */
+    public Cube[] getChildren(int twists) {
+        if (twists >= children.length) {
+            Cube[][] larger = new Cube[twists + 1][];
+            System.arraycopy(children, 0, larger, 0, children.length);
+            for (int i = children.length; i < larger.length; i++) {
+                larger[i] = new Cube[Cube.moves(cubeSize)];
+            }
+            children = larger;
+        }
+        return children[twists];
+    }
+
+    /**
+     * Returns the number of cubes created because the cache was empty.
+     * 
+     * @return the number of cubes created by this cache
+     */
+    public long getCreated() {
+        return created;
+    }
+
 }
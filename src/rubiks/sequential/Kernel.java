@@ -0,0 +1,54 @@
+package rubiks.sequential;
+
+/**
+ * Twists and checks for unpacked cubes of one size, with the positions of the
+ * elements built in (see KernelGenerator). The data arrays hold the elements
+ * of all sides one after the other, as in Cube.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public interface Kernel {
+
+    /**
+     * Twists the elements of a cube in place
+     *
+     * @param move
+     *            index of the twist ( 0 <= move < Cube.moves(size) )
+     * @param data
+     *            the elements of the cube
+     */
+    void twist(int move, byte[] data);
+
+    /**
+     * Twists the elements of a cube into another array
+     *
+     * @param move
+     *            index of the twist
+     * @param source
+     *            the elements of the cube, which are not changed
+     * @param target
+     *            the elements after the twist
+     */
+    void twist(int move, byte[] source, byte[] target);
+
+    /**
+     * Returns if every side of a cube is a single color
+     *
+     * @param data
+     *            the elements of the cube
+     * @return true if solved
+     */
+    boolean isSolved(byte[] data);
+
+    /**
+     * Returns if a cube would be solved after a twist, without twisting it
+     *
+     * @param move
+     *            index of the twist
+     * @param data
+     *            the elements of the cube
+     * @return true if the twist solves the cube
+     */
+    boolean isSolvedAfter(int move, byte[] data);
+}
@@ -0,0 +1,278 @@
+package rubiks.sequential;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Generates a Kernel for one cube size at runtime, with the ASM library
+ * shipped with Ibis. Every twist gets its own methods of straight-line code
+ * with the positions of the elements as constants, so no loops and no twist
+ * tables are left in the search. The accesses to the data arrays are range
+ * checked as in any Java code. The methods of the interface only select the
+ * method of the twist.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public class KernelGenerator implements Opcodes {
+
+    /**
+     * Largest cube size kernels are generated for. The methods of larger
+     * cubes are too big for the JIT compiler to handle well
+     */
+    public static final int MAX_SIZE = 3;
+
+    private static final String KERNEL = internalName("Kernel");
+
+    /**
+     * Generates and loads the kernel for a cube size
+     *
+     * @param size
+     *            size of the cube
+     * @param sources
+     *            per twist, for every position the position it is twisted
+     *            from (see Cube.twistSources())
+     * @param cycles
+     *            per twist, groups of four positions, each getting the
+     *            element of the next
+     * @return an instance of the generated class
+     */
+    public static Kernel generate(int size, int[][] sources, int[][] cycles) {
+        String name = internalName("GeneratedKernel" + size);
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        // old enough a class version to need no stack map frames
+        writer.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null,
+                "java/lang/Object", new String[] { KERNEL });
+
+        MethodVisitor method = writer.visitMethod(ACC_PUBLIC, "<init>",
+                "()V", null, null);
+        method.visitCode();
+        method.visitVarInsn(ALOAD, 0);
+        method.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>",
+                "()V");
+        method.visitInsn(RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+
+        for (int move = 0; move < sources.length; move++) {
+            twistInPlace(writer, move, cycles[move]);
+            twistInto(writer, move, sources[move]);
+            solvedAfter(writer, move, sources[move]);
+        }
+        dispatch(writer, name, "twist", "twist", "([B)V", 1,
+                sources.length);
+        dispatch(writer, name, "twist", "twist", "([B[B)V", 2,
+                sources.length);
+        dispatch(writer, name, "isSolvedAfter", "solvedAfter", "([B)Z", 1,
+                sources.length);
+
+        int[] identity = new int[sources[0].length];
+        for (int i = 0; i < identity.length; i++) {
+            identity[i] = i;
+        }
+        method = writer.visitMethod(ACC_PUBLIC, "isSolved", "([B)Z", null,
+                null);
+        method.visitCode();
+        solvedCheck(method, 1, 2, size * size, identity);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+
+        writer.visitEnd();
+
+        byte[] code = writer.toByteArray();
+        try {
+            return (Kernel) new Loader().define(name.replace('/', '.'), code)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new Error("could not load the generated kernel", e);
+        }
+    }
+
+    /**
+     * Returns the internal name of a class in the package of this one
+     */
+    private static String internalName(String simpleName) {
+        return KernelGenerator.class.getPackage().getName().replace('.', '/')
+                + "/" + simpleName;
+    }
+
+    /**
+     * static void twist<move>(byte[] data): moves the elements of every
+     * cycle one place, with the first element kept in a local
+     */
+    private static void twistInPlace(ClassWriter writer, int move,
+            int[] cycle) {
+        MethodVisitor method = writer.visitMethod(ACC_PRIVATE | ACC_STATIC,
+                "twist" + move, "([B)V", null, null);
+        method.visitCode();
+        for (int i = 0; i < cycle.length; i += 4) {
+            method.visitVarInsn(ALOAD, 0);
+            push(method, cycle[i]);
+            method.visitInsn(BALOAD);
+            method.visitVarInsn(ISTORE, 1);
+            for (int j = i; j < i + 3; j++) {
+                method.visitVarInsn(ALOAD, 0);
+                push(method, cycle[j]);
+                method.visitVarInsn(ALOAD, 0);
+                push(method, cycle[j + 1]);
+                method.visitInsn(BALOAD);
+                method.visitInsn(BASTORE);
+            }
+            method.visitVarInsn(ALOAD, 0);
+            push(method, cycle[i + 3]);
+            method.visitVarInsn(ILOAD, 1);
+            method.visitInsn(BASTORE);
+        }
+        method.visitInsn(RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    /**
+     * static void twist<move>(byte[] source, byte[] target): copies every
+     * element from the position it is twisted from
+     */
+    private static void twistInto(ClassWriter writer, int move, int[] source) {
+        MethodVisitor method = writer.visitMethod(ACC_PRIVATE | ACC_STATIC,
+                "twist" + move, "([B[B)V", null, null);
+        method.visitCode();
+        for (int i = 0; i < source.length; i++) {
+            method.visitVarInsn(ALOAD, 1);
+            push(method, i);
+            method.visitVarInsn(ALOAD, 0);
+            push(method, source[i]);
+            method.visitInsn(BALOAD);
+            method.visitInsn(BASTORE);
+        }
+        method.visitInsn(RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    /**
+     * static boolean solvedAfter<move>(byte[] data)
+     */
+    private static void solvedAfter(ClassWriter writer, int move,
+            int[] source) {
+        MethodVisitor method = writer.visitMethod(ACC_PRIVATE | ACC_STATIC,
+                "solvedAfter" + move, "([B)Z", null, null);
+        method.visitCode();
+        int sideSize = source.length / Cube.SIDES;
+        solvedCheck(method, 0, 1, sideSize, source);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    /**
+     * Checks that the elements read from the given positions are the same
+     * color per side, and returns the result
+     *
+     * @param data
+     *            local holding the elements
+     * @param color
+     *            free local for the color of a side
+     */
+    private static void solvedCheck(MethodVisitor method, int data,
+            int color, int sideSize, int[] source) {
+        Label notSolved = new Label();
+        for (int first = 0; first < source.length; first += sideSize) {
+            // all elements must be the same color as first element
+            method.visitVarInsn(ALOAD, data);
+            push(method, source[first]);
+            method.visitInsn(BALOAD);
+            method.visitVarInsn(ISTORE, color);
+            for (int j = first + 1; j < first + sideSize; j++) {
+                method.visitVarInsn(ALOAD, data);
+                push(method, source[j]);
+                method.visitInsn(BALOAD);
+                method.visitVarInsn(ILOAD, color);
+                method.visitJumpInsn(IF_ICMPNE, notSolved);
+            }
+        }
+        method.visitInsn(ICONST_1);
+        method.visitInsn(IRETURN);
+        method.visitLabel(notSolved);
+        method.visitInsn(ICONST_0);
+        method.visitInsn(IRETURN);
+    }
+
+    /**
+     * Generates a method of the interface, which calls the static method of
+     * the twist with the array arguments
+     *
+     * @param target
+     *            name of the static methods, without the twist
+     * @param descriptor
+     *            descriptor of the static methods
+     * @param arrays
+     *            number of array arguments after the twist
+     */
+    private static void dispatch(ClassWriter writer, String name,
+            String method, String target, String descriptor, int arrays,
+            int moves) {
+        MethodVisitor visitor = writer.visitMethod(ACC_PUBLIC, method, "(I"
+                + descriptor.substring(1), null, null);
+        visitor.visitCode();
+
+        Label[] cases = new Label[moves];
+        for (int move = 0; move < moves; move++) {
+            cases[move] = new Label();
+        }
+        Label unknown = new Label();
+        visitor.visitVarInsn(ILOAD, 1);
+        visitor.visitTableSwitchInsn(0, moves - 1, unknown, cases);
+
+        int returnOpcode = descriptor.endsWith("Z") ? IRETURN : RETURN;
+        for (int move = 0; move < moves; move++) {
+            visitor.visitLabel(cases[move]);
+            for (int i = 0; i < arrays; i++) {
+                visitor.visitVarInsn(ALOAD, 2 + i);
+            }
+            visitor.visitMethodInsn(INVOKESTATIC, name, target + move,
+                    descriptor);
+            visitor.visitInsn(returnOpcode);
+        }
+
+        // the same error as the loops over the twist tables give
+        visitor.visitLabel(unknown);
+        visitor.visitTypeInsn(NEW,
+                "java/lang/ArrayIndexOutOfBoundsException");
+        visitor.visitInsn(DUP);
+        visitor.visitVarInsn(ILOAD, 1);
+        visitor.visitMethodInsn(INVOKESPECIAL,
+                "java/lang/ArrayIndexOutOfBoundsException", "<init>", "(I)V");
+        visitor.visitInsn(ATHROW);
+        visitor.visitMaxs(0, 0);
+        visitor.visitEnd();
+    }
+
+    /**
+     * Pushes a constant with the shortest instruction
+     */
+    private static void push(MethodVisitor method, int value) {
+        if (value >= -1 && value <= 5) {
+            method.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            method.visitIntInsn(BIPUSH, value);
+        } else {
+            method.visitIntInsn(SIPUSH, value);
+        }
+    }
+
+    /**
+     * Loads the generated classes, which can see the classes of this package
+     * through the parent loader
+     */
+    private static final class Loader extends ClassLoader {
+
+        Loader() {
+            super(KernelGenerator.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] code) {
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+}
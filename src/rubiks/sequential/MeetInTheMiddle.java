@@ -0,0 +1,324 @@
+package rubiks.sequential;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Table of the cubes a number of twists away from the solved cube, to count
+ * the solutions of a cube from both ends. A search of a cube to a bound stops
+ * where the number of twists left is the depth of the table, and counts the
+ * twist sequences from the table leading from there to the solved cube. The
+ * search then only goes half as deep, or less.
+ *
+ * The table holds every cube reached from the solved cube with the twists a
+ * search does (see Cube.canTwist()), and the number of twist sequences
+ * leading back from it to the solved cube. The counts are kept apart by the
+ * twists over the same axis the sequences start with, as these may form one
+ * run of twists over the axis with the twists the search ended with. Then
+ * the counts are only added if the twists of the run can be part of a
+ * shortest solution: no twist done more than twice, and no twist done
+ * together with its inverse. Every solution is counted once this way, as
+ * split in the twists before and after the depth of the table.
+ *
+ * The count is the same as the search finds without the table for the first
+ * bound with solutions, and 0 for the bounds before, which are the only
+ * bounds the solvers search.
+ *
+ * @author Alberto Simioni
+ *
+ */
+public class MeetInTheMiddle {
+
+    /**
+     * Largest cube size supported, the twists over an axis must fit in a run
+     * (see Cube.getRun())
+     */
+    public static final int MAX_SIZE = 9;
+
+    // most twists from the solved cube, 0 if no tables are used
+    private static int maxDepth = 0;
+
+    // tables per depth, only the ones of the last two bounds are kept
+    private static final Map<Integer, MeetInTheMiddle> loaded = new HashMap<Integer, MeetInTheMiddle>();
+
+    private final int size;
+
+    private final int depth;
+
+    // twists per axis
+    private final int axisMoves;
+
+    // longs per entry: the cube, the first twists and the count
+    private final int stride;
+
+    private long[] table;
+
+    // number of entries in use
+    private int entries = 0;
+
+    // elements no twist moves, and their colors in the solved cube
+    private final int[] fixed;
+
+    private final byte[] fixedColors;
+
+    // entry added last, only used while generating the table
+    private final long[] key;
+
+    /**
+     * Sets the most twists from the solved cube the tables hold. Searches
+     * only use tables once this is set.
+     *
+     * @param depth
+     *            number of twists, 0 for no tables
+     */
+    public static synchronized void setDepth(int depth) {
+        maxDepth = depth;
+    }
+
+    /**
+     * Returns the table to search a cube with to its bound, generating it
+     * the first time. The table holds the cubes half the bound away from the
+     * solved cube, but no more than the depth set.
+     *
+     * @param cube
+     *            the cube to search
+     * @return the table, or null if no depth is set, the bound is too small,
+     *         the size of the cube is not supported or the cube does not have
+     *         the colors of the solved cube
+     */
+    public static synchronized MeetInTheMiddle get(Cube cube) {
+        int size = cube.getSize();
+        int depth = Math.min(maxDepth, cube.getBound() / 2);
+        if (depth == 0 || size < 2 || size > MAX_SIZE) {
+            return null;
+        }
+
+        MeetInTheMiddle result = loaded.get(depth);
+        if (result == null || result.size != size) {
+            long start = System.currentTimeMillis();
+            result = new MeetInTheMiddle(size, depth);
+            System.err.println("Generated the cubes " + depth
+                    + " twists from the solved cube: " + result.entries
+                    + " entries, " + (8L * result.table.length >> 20)
+                    + " MB, in " + (System.currentTimeMillis() - start)
+                    + " milliseconds");
+
+            // the tables of older bounds are not needed any more
+            Iterator<Integer> depths = loaded.keySet().iterator();
+            while (depths.hasNext()) {
+                if (depths.next() < depth - 1) {
+                    depths.remove();
+                }
+            }
+            loaded.put(depth, result);
+        }
+
+        // the corner no twist moves must be solved already
+        for (int i = 0; i < result.fixed.length; i++) {
+            if (cube.getColor(result.fixed[i]) != result.fixedColors[i]) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Generates the table of the cubes a number of twists from the solved
+     * cube.
+     */
+    private MeetInTheMiddle(int size, int depth) {
+        this.size = size;
+        this.depth = depth;
+        this.axisMoves = 2 * (size - 1);
+        this.stride = Cube.stateWords(size) + 2;
+        this.table = new long[1024 * stride];
+        this.key = new long[stride];
+
+        Cube solved = new Cube(size);
+        int[][] sources = Cube.twistSources(size);
+        int count = 0;
+        int[] elements = new int[sources[0].length];
+        for (int i = 0; i < elements.length; i++) {
+            boolean moved = false;
+            for (int[] source : sources) {
+                moved |= source[i] != i;
+            }
+            if (!moved) {
+                elements[count++] = i;
+            }
+        }
+        fixed = new int[count];
+        fixedColors = new byte[count];
+        for (int i = 0; i < count; i++) {
+            fixed[i] = elements[i];
+            fixedColors[i] = solved.getColor(elements[i]);
+        }
+
+        generate(solved, -1, 0, false, 1, 0);
+    }
+
+    /**
+     * Returns the depth of this table: the number of twists left to the bound
+     * a search looks the cubes up at
+     *
+     * @return the number of twists from the solved cube
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Counts the twist sequences leading from a cube to the solved cube with
+     * the number of twists of this table. The table is not changed, so any
+     * number of threads can count at the same time.
+     *
+     * @param state
+     *            the colors of the cube (see Cube.getState()), reached with
+     *            twists that end with the given ones
+     * @param last
+     *            last twist leading to the cube, -1 if none
+     * @param run
+     *            twists over the axis of the last twist at the end (see
+     *            Cube.getRun())
+     * @return the number of twist sequences that finish a solution
+     */
+    public long solutions(long[] state, int last, int run) {
+        int axis = last < 0 ? -1 : last / axisMoves;
+        long result = 0;
+        int entry = index(state);
+        while (table[entry + stride - 2] != 0) {
+            if (sameState(entry, state)) {
+                long first = table[entry + stride - 2];
+                int firstAxis = (int) (first >>> 32 & 0xff);
+                if (firstAxis != axis || canJoin(run, (int) first)) {
+                    result += table[entry + stride - 1];
+                }
+            }
+            entry = (entry + stride) % table.length;
+        }
+        return result;
+    }
+
+    /**
+     * Adds the cubes reached from a cube with the twists left to the depth of
+     * this table. Twists the cube in place, like Search.
+     */
+    private void generate(Cube cube, int last, int runLength,
+            boolean repeated, int weight, int run) {
+        if (cube.getTwists() == depth) {
+            add(cube, last, run, weight);
+            return;
+        }
+
+        for (int move = 0; move < Cube.moves(size); move++) {
+            if (!Cube.canFollow(size, last, repeated, move)) {
+                continue;
+            }
+            cube.twistInPlace(move);
+            if (last >= 0 && Cube.sameAxis(size, move, last)) {
+                boolean childRepeated = move == last;
+                generate(cube, move, runLength + 1, childRepeated,
+                        Cube.followingWeight(weight, runLength + 1,
+                                childRepeated), Cube.followingRun(size, run,
+                                move));
+            } else {
+                generate(cube, move, 1, false, weight, Cube.followingRun(
+                        size, 0, move));
+            }
+            cube.untwist(move);
+        }
+    }
+
+    /**
+     * Adds the twist sequences reaching a cube from the solved cube. Read
+     * backwards, with inverse twists, they lead from the cube to the solved
+     * cube, and start with the inverse of the last twists.
+     */
+    private void add(Cube cube, int last, int run, int weight) {
+        if (2 * (entries + 1) > table.length / stride) {
+            grow();
+        }
+
+        // the inverse of a twist is the other direction (see
+        // Cube.inverseTwist()), the fields of the run come in pairs
+        int inverse = (run & 0x33333333) << 2 | (run >>> 2) & 0x33333333;
+        cube.getState(key);
+        key[stride - 2] = 1L << 40 | (long) (last / axisMoves) << 32
+                | (inverse & 0xffffffffL);
+
+        int entry = index(key);
+        while (table[entry + stride - 2] != 0) {
+            if (sameState(entry, key)
+                    && table[entry + stride - 2] == key[stride - 2]) {
+                table[entry + stride - 1] += weight;
+                return;
+            }
+            entry = (entry + stride) % table.length;
+        }
+        System.arraycopy(key, 0, table, entry, stride - 1);
+        table[entry + stride - 1] = weight;
+        entries++;
+    }
+
+    /**
+     * Doubles the size of the table
+     */
+    private void grow() {
+        long[] old = table;
+        table = new long[2 * old.length];
+        for (int from = 0; from < old.length; from += stride) {
+            if (old[from + stride - 2] == 0) {
+                continue;
+            }
+            System.arraycopy(old, from, key, 0, stride);
+            int entry = index(key);
+            while (table[entry + stride - 2] != 0) {
+                entry = (entry + stride) % table.length;
+            }
+            System.arraycopy(key, 0, table, entry, stride);
+        }
+    }
+
+    /**
+     * Returns if an entry holds a cube
+     */
+    private boolean sameState(int entry, long[] state) {
+        for (int i = 0; i < stride - 2; i++) {
+            if (table[entry + i] != state[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first place to look for a cube. All entries of a cube are
+     * found from there, as only the cube is hashed
+     */
+    private int index(long[] state) {
+        long hash = 0;
+        for (int i = 0; i < stride - 2; i++) {
+            hash = (hash ^ state[i]) * 0x9e3779b97f4a7c15L;
+        }
+        hash ^= hash >>> 29;
+        return (int) (hash & (table.length / stride - 1)) * stride;
+    }
+
+    /**
+     * Returns if two runs of twists over the same axis form a run that can be
+     * part of a shortest solution (see Cube.canTwist())
+     */
+    private boolean canJoin(int run, int other) {
+        for (int move = 0; move < axisMoves; move += 2) {
+            int times = (run >>> 2 * move & 3) + (other >>> 2 * move & 3);
+            int inverseTimes = (run >>> 2 * move + 2 & 3)
+                    + (other >>> 2 * move + 2 & 3);
+            if (times > 2 || inverseTimes > 2
+                    || (times > 0 && inverseTimes > 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,5 +1,14 @@
 package rubiks.sequential;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Solver for rubik's cube puzzle.
  * 
@@ -10,34 +19,86 @@ public class Rubiks {
     
     public static final boolean PRINT_SOLUTION = false;
 
+    // cubes with fewer twists than this are split into a task per child when
+    // solving with more than one thread
+    private static final int SPLIT_TWISTS = 2;
+
+    // number of cubes looked at by solutions() and by SolutionsTasks, added
+    // once per search of a task so the threads do not count on it per cube
+    private static final LongAdder nodes = new LongAdder();
+
     /**
      * Recursive function to find a solution for a given cube. Only searches to
-     * the bound set in the cube object.
+     * the bound set in the cube object. Creates a new cube for every child,
+     * see Search for the faster version that twists a single cube in place.
+     * Skips the same redundant twist orders as Search, and counts every
+     * solution as many times as the weight of the cube (see Cube.canTwist()).
      * 
      * @param cube
      *            cube to solve
      * @param cache
      *            cache of cubes used for new cube objects
+     * @param searched
+     *            its first element is increased by the number of cubes
+     *            looked at
      * @return the number of solutions found
      */
-    private static int solutions(Cube cube, CubeCache cache) {
+    private static int solutions(Cube cube, CubeCache cache, long[] searched) {
+        searched[0]++;
+
         if (cube.isSolved()) { //***
-            return 1;
+            return cube.getWeight();
         }
 
         if (cube.getTwists() >= cube.getBound()) {
             return 0;
         }
 
-        // generate all possible cubes from this one by twisting it in
-        // every possible way. Gets new objects from the cache
-        Cube[] children = cube.generateChildren(cache); //****
+        int moves = Cube.moves(cube.getSize());
+
+        // with one twist left only check which twists solve the cube
+        if (cube.getTwists() == cube.getBound() - 1) {
+            int last = cube.getLastTwist();
+            int result = 0;
+            for (int move = 0; move < moves; move++) {
+                if (!cube.canTwist(move)) {
+                    continue;
+                }
+                searched[0]++;
+                if (cube.isSolvedAfter(move)) {
+                    if (last >= 0 && Cube.sameAxis(cube.getSize(), move, last)) {
+                        result += Cube.followingWeight(cube.getWeight(),
+                                cube.getRunLength() + 1, move == last);
+                    } else {
+                        result += cube.getWeight();
+                    }
+                    if (PRINT_SOLUTION) {
+                        Cube child = cube.twist(move, cache);
+                        child.print(System.err);
+                        cache.put(child);
+                    }
+                }
+            }
+            return result;
+        }
+
+        // generate the cubes a shortest solution can continue with from this
+        // one. Gets new objects from the cache, and an array for them that is
+        // reused for every cube at this depth
+        Cube[] children = cache.getChildren(cube.getTwists());
+        int count = 0;
+        for (int move = 0; move < moves; move++) {
+            if (cube.canTwist(move)) {
+                children[count++] = cube.twist(move, cache); //****
+            }
+        }
 
         int result = 0;
 
-        for (Cube child : children) {
+        for (int i = 0; i < count; i++) {
+            Cube child = children[i];
             // recursion step
-            int childSolutions = solutions(child, cache);
+            int childSolutions = solutions(child, cache, searched);
             if (childSolutions > 0) {
                 result += childSolutions;
                 if (PRINT_SOLUTION) {
@@ -51,6 +112,80 @@ public class Rubiks {
         return result;
     }
 
+    /**
+     * Task finding the number of solutions for a cube with a fork/join pool.
+     * Cubes with fewer than SPLIT_TWISTS twists fork a task for every child,
+     * and add up the solutions found by the tasks. The other cubes are
+     * searched by the thread running the task.
+     */
+    private static class SolutionsTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Cube cube;
+
+        private final boolean copying;
+
+        // a cache per thread, as CubeCache is not thread safe
+        private final ThreadLocal<CubeCache> caches;
+
+        SolutionsTask(Cube cube, boolean copying, ThreadLocal<CubeCache> caches) {
+            this.cube = cube;
+            this.copying = copying;
+            this.caches = caches;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (cube.getTwists() >= SPLIT_TWISTS) {
+                if (copying) {
+                    long[] searched = new long[1];
+                    int result = solutions(cube, caches.get(), searched);
+                    nodes.add(searched[0]);
+                    return result;
+                }
+                Search search = new Search(cube);
+                int result = search.solutions();
+                nodes.add(search.getNodes());
+                return result;
+            }
+
+            nodes.increment();
+
+            // the same as solutions() and Search do
+            if (cube.isSolved()) {
+                return cube.getWeight();
+            }
+
+            if (cube.getTwists() >= cube.getBound()) {
+                return 0;
+            }
+
+            CubeCache cache = caches.get();
+            List<SolutionsTask> tasks = new ArrayList<SolutionsTask>();
+            for (int move = 0; move < Cube.moves(cube.getSize()); move++) {
+                if (cube.canTwist(move)) {
+                    tasks.add(new SolutionsTask(cube.twist(move, cache),
+                            copying, caches));
+                }
+            }
+            invokeAll(tasks);
+
+            int result = 0;
+            for (SolutionsTask task : tasks) {
+                int childSolutions = task.join();
+                if (childSolutions > 0) {
+                    result += childSolutions;
+                    if (PRINT_SOLUTION) {
+                        task.cube.print(System.err);
+                    }
+                }
+                cache.put(task.cube);
+            }
+            return result;
+        }
+    }
+
     /**
      * Solves a Rubik's cube by iteratively searching for solutions with a
      * greater depth. This guarantees the optimal solution is found. Repeats all
@@ -58,13 +193,37 @@ public class Rubiks {
      * 
      * @param cube
      *            the cube to solve
+     * @param copying
+     *            if true children are copied (solutions()) instead of twisting
+     *            the cube in place (Search)
+     * @param threads
+     *            number of threads to search with
      */
-    private static void solve(Cube cube) {
+    private static void solve(Cube cube, boolean copying, int threads) {
         // cache used for cube objects. Doing new Cube() for every move
         // overloads the garbage collector
         CubeCache cache = new CubeCache(cube.getSize());
+        Search search = new Search(cube);
+
+        // used when searching with more than one thread
+        ForkJoinPool pool = null;
+        ThreadLocal<CubeCache> caches = null;
+        if (threads > 1) {
+            pool = new ForkJoinPool(threads);
+            final int size = cube.getSize();
+            caches = new ThreadLocal<CubeCache>() {
+                @Override
+                protected CubeCache initialValue() {
+                    return new CubeCache(size);
+                }
+            };
+        }
+
+        long start = System.nanoTime();
         int bound = 0;
         int result = 0;
+        long allocated = 0;
+        long allocatedBefore = allocatedBytes();
 
         System.out.print("Bound now:");
         
@@ -74,13 +233,62 @@ public class Rubiks {
             cube.setBound(bound);
 
             System.out.print(" " + bound);
-            result = solutions(cube, cache); //solutions returns the number of solutions found with the 
-            								 //current number of steps
+            long allocatedStart = allocatedBytes();
+            if (pool != null) {
+                result = pool.invoke(new SolutionsTask(cube, copying, caches));
+            } else if (copying) {
+                long[] searched = new long[1];
+                result = solutions(cube, cache, searched);
+                nodes.add(searched[0]);
+            } else {
+                result = search.solutions(); //solutions returns the number of solutions found with the 
+                                             //current number of steps
+            }
+            allocated = allocatedBytes() - allocatedStart;
+
+            String table = TranspositionTable.report();
+            if (table != null) {
+                System.err.println("Bound " + bound + ": " + table);
+            }
+        }
+
+        if (pool != null) {
+            pool.shutdown();
         }
 
         System.out.println();
         System.out.println("Solving cube possible in " + result + " ways of "
                 + bound + " steps");
+
+        // printed to standard error, like the time it took
+        long searched = copying || pool != null ? nodes.sum() : search
+                .getNodes();
+        long nanos = Math.max(1, System.nanoTime() - start);
+        System.err.println("Searched " + searched + " cubes, "
+                + (searched * 1000000000L / nanos) + " cubes per second");
+        // only counts the allocations of this thread
+        if (allocatedBefore >= 0 && pool == null) {
+            System.err.println("Solving cube allocated "
+                    + (allocatedBytes() - allocatedBefore) + " bytes, "
+                    + allocated + " in the last bound, "
+                    + cache.getCreated() + " cubes created");
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated on the heap by the current thread,
+     * used to check the search does not allocate objects.
+     * 
+     * @return the number of bytes allocated so far, or -1 if not supported by
+     *         the JVM
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
     }
 
     public static void printUsage() {
@@ -100,10 +308,26 @@ public class Rubiks {
         System.out
                 .println("--seed SEED\t\tSeed of random generator (default: 0");
         System.out
-                .println("--threads THREADS\t\tNumber of threads to use (default: 1, other values not supported by sequential version)");
+                .println("--threads THREADS\t\tNumber of threads to use (default: 1)");
         System.out.println("");
         System.out
                 .println("--file FILE_NAME\t\tLoad cube from given file instead of generating it");
+        System.out
+                .println("--packed\t\tStore cubes packed, 3 bits per element (sizes up to " + Cube.MAX_PACKED_SIZE + ")");
+        System.out
+                .println("--cubies\t\tStore cubes as the positions and orientations of their pieces (sizes 2 and 3)");
+        System.out
+                .println("--kernels\t\tTwist cubes with code generated for their size (sizes up to " + KernelGenerator.MAX_SIZE + ")");
+        System.out
+                .println("--coordinates\t\tSearch on coordinates of the pieces twisted with move tables, unless other tables are used (sizes 2 and 3)");
+        System.out
+                .println("--copying\t\tCopy every child instead of twisting one cube in place (slower)");
+        System.out
+                .println("--pdb DIRECTORY\t\tUse pattern databases in DIRECTORY to cut off the search, generating them the first time (sizes 2 and 3)");
+        System.out
+                .println("--mitm DEPTH\t\tCount the solutions from both ends, with a table of the cubes up to DEPTH twists from the solved cube (default: 0, not used)");
+        System.out
+                .println("--table MEGABYTES\t\tRemember the solutions below cubes searched before in a table of MEGABYTES per thread (default: 0, no table)");
         System.out.println("");
     }
 
@@ -121,9 +345,10 @@ public class Rubiks {
         int twists = 11;
         int seed = 0;
         String fileName = null;
+        boolean copying = false;
 
         // number of threads used to solve puzzle
-        // (not used in sequential version)
+        int threads = 1;
 
         for (int i = 0; i < arguments.length; i++) {
             if (arguments[i].equalsIgnoreCase("--size")) {
@@ -135,9 +360,31 @@ public class Rubiks {
             } else if (arguments[i].equalsIgnoreCase("--seed")) {
                 i++;
                 seed = Integer.parseInt(arguments[i]);
+            } else if (arguments[i].equalsIgnoreCase("--threads")) {
+                i++;
+                threads = Integer.parseInt(arguments[i]);
             } else if (arguments[i].equalsIgnoreCase("--file")) {
                 i++;
                 fileName = arguments[i];
+            } else if (arguments[i].equalsIgnoreCase("--packed")) {
+                Cube.setPacked(true);
+            } else if (arguments[i].equalsIgnoreCase("--cubies")) {
+                Cube.setCubies(true);
+            } else if (arguments[i].equalsIgnoreCase("--kernels")) {
+                Cube.setKernels(true);
+            } else if (arguments[i].equalsIgnoreCase("--coordinates")) {
+                Coordinates.setEnabled(true);
+            } else if (arguments[i].equalsIgnoreCase("--copying")) {
+                copying = true;
+            } else if (arguments[i].equalsIgnoreCase("--pdb")) {
+                i++;
+                PatternDatabase.setDirectory(new File(arguments[i]));
+            } else if (arguments[i].equalsIgnoreCase("--mitm")) {
+                i++;
+                MeetInTheMiddle.setDepth(Integer.parseInt(arguments[i]));
+            } else if (arguments[i].equalsIgnoreCase("--table")) {
+                i++;
+                TranspositionTable.setMemory(Integer.parseInt(arguments[i]));
             } else if (arguments[i].equalsIgnoreCase("--help") || arguments[i].equalsIgnoreCase("-h")) {
                 printUsage();
                 System.exit(0);
@@ -148,9 +395,14 @@ public class Rubiks {
             }
         }
 
-        // create cube
+        // create cube, unless the options do not support it. Cubes loaded
+        // from a file are checked once they are read
+        String unsupported;
         if (fileName == null) {
-            cube = new Cube(size, twists, seed);
+            unsupported = Cube.unsupportedMode(size);
+            if (unsupported == null) {
+                cube = new Cube(size, twists, seed);
+            }
         } else {
             try {
                 cube = new Cube(fileName);
@@ -158,6 +410,12 @@ public class Rubiks {
                 System.err.println("Cannot load cube from file: " + e);
                 System.exit(1);
             }
+            unsupported = cube.unsupportedMode();
+        }
+        if (unsupported != null) {
+            System.err.println(unsupported);
+            printUsage();
+            System.exit(1);
         }
         
         // print cube info
@@ -167,9 +425,12 @@ public class Rubiks {
         System.out.flush();
 
         
+        // load (or generate) the pattern databases before timing the search
+        PatternDatabase.get(cube);
+
         // solve
         long start = System.currentTimeMillis();
-        solve(cube);
+        solve(cube, copying, threads);
         long end = System.currentTimeMillis();
 
         // NOTE: this is printed to standard error! The rest of the output is